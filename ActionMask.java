@@ -0,0 +1,73 @@
+import java.util.Set;
+
+/**
+ * this is an ActionMask class, an action compiled to interned ids when it is loaded.
+ * Subjects become a bitset, so checking whether a player can run the action is a few
+ * word-wise ANDs against the location's and the player's presence bitsets. Consumed and
+ * produced become id arrays in the action's own order, so running it looks nothing up by name.
+ */
+public class ActionMask {
+
+  private final long[] subjects;   // bit per subject id
+  private final int[] consumed;    // consumed ids, "health" included
+  private final int[] produced;    // produced ids, "health" and location names included
+
+  /**
+   * @param action loaded action
+   * @param symbols interns every name the action mentions
+   */
+  public ActionMask(Action action, Symbols symbols) {
+    long[] bits = new long[1];
+    for (String subject: action.getSubjects()) {
+      bits = Bits.set(bits, symbols.intern(subject));
+    }
+    subjects = bits;
+    consumed = ids(action.getConsumed(), symbols);
+    produced = ids(action.getProduced(), symbols);
+  }
+
+  private static int[] ids(Set<String> names, Symbols symbols) {
+    int[] ids = new int[names.size()];
+    int i = 0;
+    for (String name: names) {
+      ids[i++] = symbols.intern(name);
+    }
+    return ids;
+  }
+
+  /**
+   * check an id is one of the action's subjects
+   * @param id entity id, -1 for a name never interned
+   * @return
+   */
+  public boolean hasSubject(int id) {
+    return Bits.get(subjects, id);
+  }
+
+  /**
+   * check every subject is at hand: furniture or a character in the location, or carried.
+   * Any other subject is a tool the player has to carry
+   * @param furniture furniture in the location, may be null
+   * @param characters characters in the location, may be null
+   * @param held items the player carries
+   * @return
+   */
+  public boolean runnable(long[] furniture, long[] characters, long[] held) {
+    for (int word = 0; word < subjects.length; word++) {
+      long atHand = Bits.word(furniture, word) | Bits.word(characters, word) | Bits.word(held, word);
+      if ((subjects[word] & ~atHand) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int[] getConsumed() {
+    return consumed;
+  }
+
+  public int[] getProduced() {
+    return produced;
+  }
+
+}
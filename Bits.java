@@ -0,0 +1,59 @@
+import java.util.Arrays;
+
+/**
+ * this is a Bits class, helpers for bitsets over interned ids kept in plain long arrays.
+ * An array may be shorter than the ids in use, missing words read as 0.
+ */
+public final class Bits {
+
+  private Bits() {
+  }
+
+  /**
+   * set the bit of an id
+   * @param bits
+   * @param id not negative
+   * @return bits, or a longer copy if the id did not fit
+   */
+  public static long[] set(long[] bits, int id) {
+    int word = id >>> 6;
+    if (word >= bits.length) {
+      bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+    }
+    bits[word] |= 1L << id;
+    return bits;
+  }
+
+  /**
+   * clear the bit of an id
+   * @param bits
+   * @param id not negative
+   */
+  public static void clear(long[] bits, int id) {
+    int word = id >>> 6;
+    if (word < bits.length) {
+      bits[word] &= ~(1L << id);
+    }
+  }
+
+  /**
+   * test the bit of an id
+   * @param bits
+   * @param id -1 reads as not set
+   * @return
+   */
+  public static boolean get(long[] bits, int id) {
+    return id >= 0 && (word(bits, id >>> 6) & 1L << id) != 0;
+  }
+
+  /**
+   * a word of a bitset
+   * @param bits may be null
+   * @param word
+   * @return 0 past the end
+   */
+  public static long word(long[] bits, int word) {
+    return bits != null && word < bits.length ? bits[word] : 0;
+  }
+
+}
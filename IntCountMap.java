@@ -0,0 +1,222 @@
+import java.util.Arrays;
+
+/**
+ * this is an IntCountMap class, counts keyed by int ids (interned names) without boxing.
+ * Keys are found through an open-addressing table with linear probing, the entries themselves
+ * sit in two parallel arrays in the order they were first added, so iterating keeps insertion order
+ * like a LinkedHashMap would. A key whose count drops to 0 is removed.
+ *
+ * iterate with: for (int i = 0; i < map.end(); i++) if (map.keyAt(i) >= 0) ... map.countAt(i)
+ * Not thread safe, callers guard it like the collection it replaces.
+ */
+public class IntCountMap {
+
+  private static final int EMPTY = 0;     // table slot never used
+  private static final int DELETED = -1;  // table slot whose entry was removed, probes go on past it
+
+  private int[] table;    // entry position + 1, or EMPTY / DELETED
+  private int[] keys;     // entry keys in insertion order, -1 for a removed entry
+  private int[] counts;   // entry counts
+  private int end;        // entries used, removed ones included
+  private int size;       // live entries
+  private int deleted;    // DELETED slots in the table
+
+  public IntCountMap() {
+    this(4);
+  }
+
+  /**
+   * @param expected number of keys to make room for
+   */
+  public IntCountMap(int expected) {
+    int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) * 2;   // at most half full
+    table = new int[capacity];
+    keys = new int[capacity / 2];
+    counts = new int[capacity / 2];
+  }
+
+  /**
+   * get the count of a key
+   * @param key id, not negative
+   * @return 0 if the key is not here
+   */
+  public int get(int key) {
+    int slot = find(key);
+    return slot < 0 ? 0 : counts[table[slot] - 1];
+  }
+
+  public boolean contains(int key) {
+    return find(key) >= 0;
+  }
+
+  /**
+   * add to the count of a key, a new key goes after every key already here
+   * @param key id, not negative
+   * @param count how many, more than 0
+   * @return the new count
+   */
+  public int add(int key, int count) {
+    int slot = find(key);
+    if (slot >= 0) {
+      return counts[table[slot] - 1] += count;
+    }
+    if (end == keys.length || (end + 1 + deleted) * 2 > table.length) {
+      rehash();
+    }
+    keys[end] = key;
+    counts[end] = count;
+    end++;
+    size++;
+    int free = hash(key);
+    while (table[free] != EMPTY && table[free] != DELETED) {   // the key is not here, first reusable slot will do
+      free = (free + 1) & (table.length - 1);
+    }
+    if (table[free] == DELETED) {
+      deleted--;
+    }
+    table[free] = end;
+    return count;
+  }
+
+  /**
+   * take from the count of a key, the key is removed when nothing is left
+   * @param key id
+   * @param count how many at most
+   * @return how many were taken, 0 if the key is not here
+   */
+  public int remove(int key, int count) {
+    int slot = find(key);
+    if (slot < 0) {
+      return 0;
+    }
+    int position = table[slot] - 1;
+    if (counts[position] > count) {
+      counts[position] -= count;
+      return count;
+    }
+    int removed = counts[position];   // the whole stack
+    table[slot] = DELETED;
+    keys[position] = -1;
+    counts[position] = 0;
+    deleted++;
+    size--;
+    if (position == end - 1) {   // removed the last entry, its position can be reused at once
+      end--;
+    }
+    return removed;
+  }
+
+  /**
+   * remove every key
+   */
+  public void clear() {
+    Arrays.fill(table, EMPTY);
+    end = 0;
+    size = 0;
+    deleted = 0;
+  }
+
+  /**
+   * number of keys
+   * @return
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * sum of all counts
+   * @return
+   */
+  public long total() {
+    long total = 0;
+    for (int i = 0; i < end; i++) {
+      total += counts[i];
+    }
+    return total;
+  }
+
+  /**
+   * bound for iterating entry positions
+   * @return
+   */
+  public int end() {
+    return end;
+  }
+
+  /**
+   * key at an entry position
+   * @param position from 0 to end()
+   * @return the key, or -1 if the entry was removed
+   */
+  public int keyAt(int position) {
+    return keys[position];
+  }
+
+  /**
+   * count at an entry position
+   * @param position from 0 to end()
+   * @return the count, 0 if the entry was removed
+   */
+  public int countAt(int position) {
+    return counts[position];
+  }
+
+  /**
+   * table slot of a key
+   * @param key
+   * @return the slot, or -1 if the key is not here
+   */
+  private int find(int key) {
+    int mask = table.length - 1;
+    for (int i = hash(key); ; i = (i + 1) & mask) {
+      int entry = table[i];
+      if (entry == EMPTY) {
+        return -1;
+      }
+      if (entry != DELETED && keys[entry - 1] == key) {
+        return i;
+      }
+    }
+  }
+
+  private int hash(int key) {
+    int h = key * 0x9E3779B9;   // ids are dense, spread them over the table
+    return (h ^ (h >>> 16)) & (table.length - 1);
+  }
+
+  /**
+   * drop removed entries and rebuild the table, growing it when it is more than a quarter full
+   */
+  private void rehash() {
+    int capacity = table.length;
+    if ((size + 1) * 4 > capacity) {
+      capacity *= 2;
+    }
+    int[] oldKeys = keys;
+    int[] oldCounts = counts;
+    table = new int[capacity];
+    keys = new int[capacity / 2];
+    counts = new int[capacity / 2];
+    int live = 0;
+    for (int i = 0; i < end; i++) {   // compact, keeping insertion order
+      if (oldKeys[i] >= 0) {
+        keys[live] = oldKeys[i];
+        counts[live] = oldCounts[i];
+        live++;
+        int slot = hash(oldKeys[i]);
+        while (table[slot] != EMPTY) {
+          slot = (slot + 1) & (capacity - 1);
+        }
+        table[slot] = live;
+      }
+    }
+    end = live;
+    deleted = 0;
+  }
+
+}
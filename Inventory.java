@@ -0,0 +1,71 @@
+/**
+ * this is an Inventory class, what one player carries as interned item ids with counts.
+ * A bitset of the items held is kept next to the counts, so an action's tools are checked
+ * with word-wise ANDs, see ActionMask.
+ */
+public class Inventory {
+
+  private final IntCountMap items = new IntCountMap();   // item id -> count, in the order first picked up
+  private long[] held = new long[1];   // bit per item id, set while at least one is carried
+
+  /**
+   * how many of an item are carried
+   * @param item item id
+   * @return
+   */
+  public int count(int item) {
+    return item < 0 ? 0 : items.get(item);
+  }
+
+  /**
+   * add a stack of an item
+   * @param item item id
+   * @param count how many
+   */
+  public void add(int item, int count) {
+    items.add(item, count);
+    held = Bits.set(held, item);
+  }
+
+  /**
+   * take some of an item
+   * @param item item id, -1 for a name never interned
+   * @param count how many at most
+   * @return how many were taken, 0 if the item is not carried
+   */
+  public int remove(int item, int count) {
+    if (item < 0) {
+      return 0;
+    }
+    int removed = items.remove(item, count);
+    if (removed > 0 && !items.contains(item)) {   // last one gone
+      Bits.clear(held, item);
+    }
+    return removed;
+  }
+
+  /**
+   * drop everything
+   */
+  public void clear() {
+    items.clear();
+    held = new long[1];
+  }
+
+  /**
+   * bit per item id carried, see Bits
+   * @return
+   */
+  public long[] getHeld() {
+    return held;
+  }
+
+  /**
+   * the counts, iterate them with end(), keyAt() and countAt()
+   * @return
+   */
+  public IntCountMap getItems() {
+    return items;
+  }
+
+}
@@ -0,0 +1,391 @@
+import com.alexmerz.graphviz.objects.Graph;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * this is a Location class that holds what is in one location of the world model,
+ * entities are indexed by type and by name so lookups don't depend on how much is in the room.
+ * Types and entities are kept as interned ids with primitive counts, one IntCountMap per type.
+ * Callers hold the location's lock while reading or changing it.
+ */
+public class Location {
+
+  private static final Set<String> INDEXED = Set.of("artefacts", "furniture", "characters");   // types actions name as subjects
+
+  private final int index;          // lock order, load order except the unplaced location which comes last
+  private final String name;        // location name
+  private final String description; // location description
+  private final Graph graph;        // graph handle players keep as their position
+  private final ReentrantLock lock = new ReentrantLock();  // guard this location's contents
+
+  private final Symbols symbols;     // ids of type and entity names
+  private int[] types = new int[4];  // type ids in the order they were added
+  private IntCountMap[] contents = new IntCountMap[4];  // per type, entity id -> count
+  private long[][] present = new long[4][];           // per indexed type, bit per entity id while at least one is here; null for players
+  private int typeCount;
+  private final Set<Location> exits = new LinkedHashSet<>();   // locations a path leads to, in the order they were added
+  private long version;          // bumped on every change to contents or exits
+  private Rendering rendering;   // last rendered description, valid while its version matches
+
+  public Location(int index, String name, String description, Graph graph, Symbols symbols) {
+    this.index = index;
+    this.name = name;
+    this.description = description;
+    this.graph = graph;
+    this.symbols = symbols;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public Graph getGraph() {
+    return graph;
+  }
+
+  public ReentrantLock getLock() {
+    return lock;
+  }
+
+  /**
+   * check the location has the entity as the given type
+   * @param type entity type
+   * @param entity entity name
+   * @return
+   */
+  public boolean contains(String type, String entity) {
+    int typeId = symbols.id(type);
+    return typeId >= 0 && typeIdOf(symbols.id(entity)) == typeId;
+  }
+
+  /**
+   * get the type of an entity in this location
+   * @param entity entity name
+   * @return the type, or null if the entity is not here
+   */
+  public String typeOf(String entity) {
+    int type = typeIdOf(symbols.id(entity));
+    return type < 0 ? null : symbols.name(type);
+  }
+
+  /**
+   * get the type id of an entity in this location
+   * @param entity entity id
+   * @return the type id, or -1 if the entity is not here
+   */
+  public int typeIdOf(int entity) {
+    int slot = slotOf(entity);
+    return slot < 0 ? -1 : types[slot];
+  }
+
+  /**
+   * get how many of an entity are in this location
+   * @param entity entity name
+   * @return
+   */
+  public int count(String entity) {
+    return count(symbols.id(entity));
+  }
+
+  /**
+   * get how many of an entity are in this location
+   * @param entity entity id
+   * @return
+   */
+  public int count(int entity) {
+    int slot = slotOf(entity);
+    return slot < 0 ? 0 : contents[slot].get(entity);
+  }
+
+  /**
+   * add an entity type to the location, keeps the type listed even when it is empty
+   * @param type entity type
+   */
+  public void addType(String type) {
+    int typeId = symbols.intern(type);
+    if (typeSlot(typeId) < 0) {
+      newType(typeId);
+      version++;
+    }
+  }
+
+  /**
+   * add entities to the location, a whole stack in one step
+   * @param type entity type
+   * @param entity entity name
+   * @param count how many
+   */
+  public void add(String type, String entity, int count) {
+    int typeId = symbols.intern(type);
+    int slot = typeSlot(typeId);
+    if (slot < 0) {
+      slot = newType(typeId);
+    }
+    int id = symbols.intern(entity);
+    contents[slot].add(id, count);
+    if (present[slot] != null) {
+      present[slot] = Bits.set(present[slot], id);
+    }
+    version++;
+  }
+
+  /**
+   * remove entities from the location
+   * @param entity entity name
+   * @param count how many at most
+   * @return the entity's type, or null if it is not here
+   */
+  public String remove(String entity, int count) {
+    int id = symbols.id(entity);
+    int slot = slotOf(id);
+    if (slot < 0) {
+      return null;
+    }
+    contents[slot].remove(id, count);   // the entity is gone once its last one is
+    if (present[slot] != null && !contents[slot].contains(id)) {
+      Bits.clear(present[slot], id);
+    }
+    version++;
+    return symbols.name(types[slot]);
+  }
+
+  /**
+   * empty the location, the entity types stay listed
+   */
+  public void clear() {
+    for (int i = 0; i < typeCount; i++) {
+      contents[i].clear();
+      if (present[i] != null) {
+        present[i] = new long[1];
+      }
+    }
+    exits.clear();
+    version++;
+  }
+
+  /**
+   * entities of a type in this location as a bitset over entity ids, see Bits.
+   * Only artefacts, furniture and characters are indexed, players come and go under ids
+   * interned long after the world was loaded and would only make the bitsets longer.
+   * Caller holds the lock and doesn't keep the array
+   * @param type type id
+   * @return null if the type is not listed here or not indexed
+   */
+  public long[] presence(int type) {
+    int slot = typeSlot(type);
+    return slot < 0 ? null : present[slot];
+  }
+
+  /**
+   * number of entities in the location, each of a stack counted
+   * @return
+   */
+  public long countEntities() {
+    long count = 0;
+    for (int i = 0; i < typeCount; i++) {
+      count += contents[i].total();
+    }
+    return count;
+  }
+
+  /**
+   * slot of the type holding an entity, a location has only a handful of types
+   * @param entity entity id, -1 for a name never interned
+   * @return the slot, or -1 if the entity is not here
+   */
+  private int slotOf(int entity) {
+    if (entity < 0) {
+      return -1;
+    }
+    for (int i = 0; i < typeCount; i++) {
+      if (contents[i].contains(entity)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int typeSlot(int type) {
+    for (int i = 0; i < typeCount; i++) {
+      if (types[i] == type) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int newType(int type) {
+    if (typeCount == types.length) {
+      types = Arrays.copyOf(types, typeCount * 2);
+      contents = Arrays.copyOf(contents, typeCount * 2);
+      present = Arrays.copyOf(present, typeCount * 2);
+    }
+    types[typeCount] = type;
+    contents[typeCount] = new IntCountMap();
+    present[typeCount] = INDEXED.contains(symbols.name(type)) ? new long[1] : null;
+    return typeCount++;
+  }
+
+  /**
+   * add a path from this location
+   * @param target location the path leads to
+   */
+  public void addExit(Location target) {
+    if (exits.add(target)) {
+      version++;
+    }
+  }
+
+  /**
+   * check there is a path from this location to the target
+   * @param target
+   * @return
+   */
+  public boolean hasExit(Location target) {
+    return exits.contains(target);
+  }
+
+  /**
+   * locations a path from here leads to
+   * @return
+   */
+  public Collection<Location> getExits() {
+    return Collections.unmodifiableSet(exits);
+  }
+
+  /**
+   * what is in the location, type -> entity name -> count, in the order it was added.
+   * A copy, for callers walking the whole location (snapshots, images)
+   * @return
+   */
+  public Map<String, Map<String, Integer>> getContents() {
+    Map<String, Map<String, Integer>> copy = new LinkedHashMap<>();
+    for (int i = 0; i < typeCount; i++) {
+      Map<String, Integer> entities = new LinkedHashMap<>();
+      IntCountMap counts = contents[i];
+      for (int e = 0; e < counts.end(); e++) {
+        if (counts.keyAt(e) >= 0) {
+          entities.put(symbols.name(counts.keyAt(e)), counts.countAt(e));
+        }
+      }
+      copy.put(symbols.name(types[i]), entities);
+    }
+    return copy;
+  }
+
+  /**
+   * write the location as the body of a PLACE reply, see StagBinary
+   * @param out reply
+   * @param excluded entity id to leave out, usually the player looking
+   */
+  public void writeTo(StagBinary.Reply out, int excluded) {
+    out.putId(symbols.id(name)).putByte(typeCount);
+    for (int t = 0; t < typeCount; t++) {
+      out.putId(types[t]);
+      int mark = out.position();
+      out.putInt(0);
+      int written = 0;
+      IntCountMap entities = contents[t];
+      for (int e = 0; e < entities.end(); e++) {
+        int entity = entities.keyAt(e);
+        if (entity >= 0 && entity != excluded) {
+          out.putId(entity).putInt(entities.countAt(e));
+          written++;
+        }
+      }
+      out.setInt(mark, written);
+    }
+    out.putInt(exits.size());
+    for (Location exit: exits) {
+      out.putId(symbols.id(exit.name));
+    }
+  }
+
+  /**
+   * version of the location, changes whenever contents or exits change
+   * @return
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * the look description of this location, shared by every player looking at it.
+   * It is only rebuilt after the location changed.
+   * @return
+   */
+  public Rendering render() {
+    if (rendering == null || rendering.version != version) {
+      rendering = new Rendering(this);
+    }
+    return rendering;
+  }
+
+  /**
+   * a rendered look description and where each entity's lines are in it,
+   * so a reader can leave out its own player line without re-rendering
+   */
+  public static class Rendering {
+
+    private final long version;     // location version it was rendered from
+    private final String text;      // full description
+    private final Map<String, int[]> spans = new HashMap<>();  // entity name -> [start, end) of its lines
+
+    private Rendering(Location location) {
+      version = location.version;
+      StringBuilder out = new StringBuilder();
+      out.append("You are in ").append(location.name).append(" now.\n");
+
+      out.append("These following things are in these position:\n");
+      Symbols symbols = location.symbols;
+      for (int t = 0; t < location.typeCount; t++) {  // iterator to visit different type entity in the location
+        out.append(symbols.name(location.types[t])).append(":\n");
+        IntCountMap entities = location.contents[t];
+        for (int e = 0; e < entities.end(); e++) {  // iterator to visit different entity
+          if (entities.keyAt(e) < 0) {
+            continue;   // removed
+          }
+          String entity = symbols.name(entities.keyAt(e));
+          int start = out.length();
+          for (int i = 0; i < entities.countAt(e); i++) {
+            out.append('\t').append(entity).append('\n');
+          }
+          spans.put(entity, new int[] {start, out.length()});
+        }
+      }
+
+      out.append("You can goto to the following position: \n");
+
+      for (Location adjacent: location.exits) {   // adjacent location can goto
+        out.append('\t').append(adjacent.name).append('\n');
+      }
+      text = out.toString();
+    }
+
+    /**
+     * append the description, leaving out the lines of one entity
+     * @param out response buffer
+     * @param excluded entity name to leave out, usually the player looking
+     */
+    public void appendTo(StringBuilder out, String excluded) {
+      int[] span = spans.get(excluded);
+      if (span == null) {
+        out.append(text);
+      }
+      else {
+        out.append(text, 0, span[0]).append(text, span[1], text.length());
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,288 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * this is a StagAdmission class, the server front end asks it before a command goes to the game
+ * state, so a few scripted players hammering the server can't hold everyone else up.
+ *
+ * every player draws a token per command from a bucket refilled at -Dstag.admission.rate commands
+ * a second, holding at most -Dstag.admission.burst; at most -Dstag.admission.inflight commands run
+ * at once over all connections. A command that finds its bucket empty or the server full is shed:
+ * it gets BUSY straight away and never waits, so those who play at a human pace keep their latency.
+ * -Dstag.admission.rate=0 turns the buckets off.
+ *
+ * buckets are the slots of one AtomicLongArray. A player's name picks two slots through two unrelated
+ * hashes, a command draws a token from both and is shed only when both are empty, so a player flooding
+ * the server holds up someone else only if that player's two slots are both among the flooder's. That is
+ * the trade-off against buckets keyed by name, which never share: those would need a map swept of idle
+ * players and a String made of every line's name, where the slots are fixed and looked up in place.
+ * A bucket is a single long, the time it was last refilled and its tokens, updated with compare-and-set,
+ * so the limiter takes no lock and keeps nothing per player.
+ */
+public class StagAdmission {
+
+  static final String BUSY = "Server busy, try again later";
+
+  private static final int TOKEN_BITS = 22;   // low bits of a bucket, thousandths of a token
+  private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+  private static final long TOKEN = 1000;
+  private static final int PAD = 8;           // longs between buckets, a cache line each
+
+  private final long rate;          // thousandths of a token a millisecond
+  private final long capacity = Math.min(TOKEN_MASK, Integer.getInteger("stag.admission.burst", 400) * TOKEN);
+  private final int inFlightLimit = Integer.getInteger("stag.admission.inflight", 1024);
+  private final AtomicLongArray buckets;
+  private final int slotMask;
+  private final long start = System.nanoTime();
+  private final long fill;          // milliseconds an empty bucket takes to fill
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder shedRate = new LongAdder();
+  private final LongAdder shedBusy = new LongAdder();
+  private final List<StagMetrics.Gauge> gauges = new ArrayList<>();
+
+  public StagAdmission() {
+    this(Integer.getInteger("stag.admission.rate", 200));
+  }
+
+  /**
+   * @param rate commands a second each player may send, 0 for no buckets, as on the peer link between shards
+   */
+  StagAdmission(int rate) {
+    this.rate = rate;
+    fill = rate > 0 ? capacity / rate + 1 : 0;
+    int slots = Integer.highestOneBit(Math.max(1, Integer.getInteger("stag.admission.buckets", 4096)));
+    buckets = new AtomicLongArray(slots * PAD);
+    slotMask = slots - 1;
+    StagMetrics metrics = StagMetrics.global();
+    gauges.add(metrics.gauge("stag_in_flight", inFlight::get));
+    gauges.add(metrics.gauge("stag_shed_rate_total", shedRate::sum));
+    gauges.add(metrics.gauge("stag_shed_busy_total", shedBusy::sum));
+  }
+
+  /**
+   * drop this limiter's gauges, once no server asks it any more
+   */
+  public void close() {
+    StagMetrics.close(gauges);
+  }
+
+  /**
+   * admit a command line, call release once it is answered
+   * @param line "username: command"
+   * @return false if the command is shed, answer it with BUSY
+   */
+  public boolean admit(String line) {
+    return enter(true, hash(line));
+  }
+
+  /**
+   * admit a command line still in its read buffer, call release once it is answered
+   * @param line bytes holding the line
+   * @param from first byte of the line
+   * @param to end of the line
+   * @return false if the command is shed
+   */
+  public boolean admit(byte[] line, int from, int to) {
+    return enter(true, hash(line, from, to));
+  }
+
+  /**
+   * admit a request of a player known by name, as a binary session is
+   * @param username
+   * @return false if the request is shed
+   */
+  public boolean admitPlayer(String username) {
+    return enter(true, hash(username));
+  }
+
+  /**
+   * admit a batch as one command in flight that costs each of its lines a token. The whole cost is
+   * checked before any token is drawn, so a shed batch takes nothing, and a player's share is capped
+   * at a full bucket, so a batch of up to StagServer.MAX_BATCH lines is admitted whatever the burst
+   * @param lines command lines
+   * @return false if the batch is shed as a whole
+   */
+  public boolean admit(List<String> lines) {
+    if (!enter(false, 0)) {
+      return false;
+    }
+    if (rate <= 0) {
+      return true;
+    }
+    Map<Long, Integer> costs = new HashMap<>();
+    for (String line: lines) {
+      costs.merge(hash(line), 1, Integer::sum);
+    }
+    long now = now();
+    for (Map.Entry<Long, Integer> cost: costs.entrySet()) {
+      if (!holds(cost.getKey(), now, cost.getValue())) {
+        release();
+        shedRate.increment();
+        return false;
+      }
+    }
+    for (Map.Entry<Long, Integer> cost: costs.entrySet()) {
+      draw(cost.getKey(), now, cost.getValue());
+    }
+    return true;
+  }
+
+  /**
+   * both hashes of the name a line starts with, over its utf-8 bytes as the bytes of a line in a buffer are
+   * @return the first hash in the high half, the second in the low half
+   */
+  private static long hash(String line) {
+    int end = line.indexOf(':');
+    if (end < 0) {
+      end = line.length();
+    }
+    for (int i = 0; i < end; i++) {
+      if (line.charAt(i) >= 0x80) {   // not ascii, hash what the charset encodes
+        byte[] bytes = line.substring(0, end).getBytes(StandardCharsets.UTF_8);
+        return hash(bytes, 0, bytes.length);
+      }
+    }
+    int h = 0;
+    int g = 0x811C9DC5;
+    for (int i = 0; i < end; i++) {
+      byte b = (byte) line.charAt(i);
+      h = 31 * h + b;
+      g = (g ^ b) * 0x01000193;
+    }
+    return (long) h << 32 | g & 0xFFFFFFFFL;
+  }
+
+  private static long hash(byte[] line, int from, int to) {
+    int h = 0;
+    int g = 0x811C9DC5;
+    for (int i = from; i < to && line[i] != ':'; i++) {
+      h = 31 * h + line[i];
+      g = (g ^ line[i]) * 0x01000193;
+    }
+    return (long) h << 32 | g & 0xFFFFFFFFL;
+  }
+
+  /**
+   * an admitted command was answered, its place in flight is free again
+   */
+  public void release() {
+    inFlight.decrementAndGet();
+  }
+
+  /**
+   * take a place in flight and a token of the hashed name's buckets
+   * @param limited draw a token
+   * @param h both name hashes
+   */
+  private boolean enter(boolean limited, long h) {
+    if (inFlight.incrementAndGet() > inFlightLimit) {
+      inFlight.decrementAndGet();
+      shedBusy.increment();
+      return false;
+    }
+    if (limited && !take(h)) {
+      inFlight.decrementAndGet();
+      shedRate.increment();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * take a token of a name's two buckets, refilling them for the time since they were last touched.
+   * Either one having a token is enough, the other is drawn down as far as it goes
+   * @param h both name hashes
+   * @return false if both buckets are empty
+   */
+  private boolean take(long h) {
+    if (rate <= 0) {
+      return true;
+    }
+    long now = now();
+    if (!holds(h, now, 1)) {
+      return false;
+    }
+    draw(h, now, 1);
+    return true;
+  }
+
+  /**
+   * check one of a name's two buckets holds tokens for some commands, more than a bucket holds cost a full one
+   * @param h both name hashes
+   * @param count commands
+   */
+  private boolean holds(long h, long now, int count) {
+    long cost = Math.min(capacity, count * TOKEN);
+    return tokens(first(h) * PAD, now) >= cost || tokens(second(h) * PAD, now) >= cost;
+  }
+
+  /**
+   * draw the tokens of some commands from both of a name's buckets
+   */
+  private void draw(long h, long now, int count) {
+    long cost = Math.min(capacity, count * TOKEN);
+    draw(first(h) * PAD, now, cost);
+    draw(second(h) * PAD, now, cost);
+  }
+
+  private int first(long h) {
+    return slot((int) (h >>> 32));
+  }
+
+  private int second(long h) {
+    int first = first(h);
+    int second = slot((int) h);
+    return second != first ? second : (first ^ 1) & slotMask;   // a neighbour, still a second opinion
+  }
+
+  private int slot(int h) {
+    int mixed = h * 0x9E3779B9;
+    return (mixed ^ mixed >>> 16) & slotMask;
+  }
+
+  private long now() {
+    return (System.nanoTime() - start) / 1_000_000 + fill;   // a bucket never touched reads as full
+  }
+
+  /**
+   * tokens a bucket holds at a time, refill included
+   */
+  private long tokens(int slot, long now) {
+    long bucket = buckets.get(slot);
+    return Math.min(capacity, (bucket & TOKEN_MASK) + Math.max(0, now - (bucket >>> TOKEN_BITS)) * rate);
+  }
+
+  /**
+   * take tokens from a bucket, or what is left of them
+   */
+  private void draw(int slot, long now, long cost) {
+    while (true) {
+      long bucket = buckets.get(slot);
+      long last = bucket >>> TOKEN_BITS;
+      long tokens = Math.min(capacity, (bucket & TOKEN_MASK) + Math.max(0, now - last) * rate);
+      long next = Math.max(now, last) << TOKEN_BITS | Math.max(0, tokens - cost);
+      if (buckets.compareAndSet(slot, bucket, next)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * the framed answers of a shed batch, one per line as handleBatch would give
+   * @param lines number of lines in the batch
+   * @param out response buffer
+   */
+  static void busyBatch(int lines, StringBuilder out) {
+    for (int i = 0; i < lines; i++) {
+      out.append("server: \n").append(BUSY).append('\n').append(StagServer.END_OF_RESPONSE).append('\n');
+    }
+  }
+
+}
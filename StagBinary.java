@@ -0,0 +1,189 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * this is a StagBinary class, the compact binary protocol a connection may speak instead of text lines.
+ * A binary connection starts with the byte MAGIC, which no text line starts with, every frame after it
+ * is a big-endian int length followed by that many bytes. Names travel as ids of the server's Symbols.
+ *
+ * requests, the first byte is the opcode:
+ *   HELLO <u16 length> <utf-8 username>   first frame, the reply lists the names of the world
+ *   INVENTORY | LOOK | HEALTH
+ *   GET <item id> | DROP <item id> | GOTO <location id>
+ *   ACTION <trigger id> <u8 count> <subject id>...
+ * replies, the first byte is the kind:
+ *   HELLO <int count> <name>...                 names of ids 0 to count - 1
+ *   TEXT <name>                                 the text response a line command would get
+ *   PLACE <location id> <u8 types> (<type id> <int entities> (<entity id> <int count>)...)... <int exits> <location id>...
+ *   ITEMS <int items> (<item id> <int count>)...
+ *   HEALTH <int health>
+ *   REDIRECT <int shard>                        the player is held by another shard
+ *   ERROR <name>                                malformed request
+ *   BUSY <name>                                 shed by StagAdmission, send it again later
+ * a <name> is a u16 length and utf-8 bytes. An id the client was not told in HELLO (a player) is
+ * followed by its name every time it is sent; it is only good for that reply, a player that left
+ * gives its id up to the next one joining.
+ */
+class StagBinary {
+
+  static final int MAGIC = 0xB7;
+  static final int MAX_FRAME = 8 * 1024;   // longest request frame
+
+  // request opcodes
+  static final byte HELLO = 0;
+  static final byte INVENTORY = 1;
+  static final byte GET = 2;
+  static final byte DROP = 3;
+  static final byte GOTO = 4;
+  static final byte LOOK = 5;
+  static final byte HEALTH = 6;
+  static final byte ACTION = 7;
+
+  // reply kinds, HELLO and HEALTH are shared with the requests
+  static final byte TEXT = 16;
+  static final byte PLACE = 17;
+  static final byte ITEMS = 18;
+  static final byte REDIRECT = 19;
+  static final byte ERROR = 20;
+  static final byte BUSY = 21;
+
+  /**
+   * command type a request is counted under in StagMetrics
+   * @param opcode
+   * @return
+   */
+  static int commandType(byte opcode) {
+    switch (opcode) {
+      case INVENTORY:
+        return 0;
+      case GET:
+        return 1;
+      case DROP:
+        return 2;
+      case GOTO:
+        return 3;
+      case LOOK:
+        return 4;
+      case HEALTH:
+        return 5;
+      default:
+        return StagMetrics.ACTION;
+    }
+  }
+
+  /**
+   * a binary connection once HELLO named its player
+   */
+  static class Session {
+
+    final String username;
+    final int known;   // ids listed in the HELLO reply
+
+    Session(String username, int known) {
+      this.username = username;
+      this.known = known;
+    }
+
+  }
+
+  /**
+   * a reply frame being written, reused by a connection for every request
+   */
+  static class Reply {
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+    private Symbols symbols;   // names of the ids written
+    private int known;         // ids below this were listed in the connection's HELLO
+
+    /**
+     * start a reply
+     * @param symbols names of the ids that will be written
+     * @param known ids the client knows the names of
+     * @param kind reply kind
+     * @return
+     */
+    Reply begin(Symbols symbols, int known, byte kind) {
+      this.symbols = symbols;
+      this.known = known;
+      buffer.clear();
+      buffer.putInt(0);   // length, filled in by finish
+      buffer.put(kind);
+      return this;
+    }
+
+    /**
+     * throw away what was written and start over as another kind
+     * @param kind
+     * @return
+     */
+    Reply restart(byte kind) {
+      return begin(symbols, known, kind);
+    }
+
+    Reply putByte(int value) {
+      ensure(1);
+      buffer.put((byte) value);
+      return this;
+    }
+
+    Reply putInt(int value) {
+      ensure(4);
+      buffer.putInt(value);
+      return this;
+    }
+
+    /**
+     * an id, with its name if the client can't know it
+     * @param id
+     * @return
+     */
+    Reply putId(int id) {
+      putInt(id);
+      if (id >= known) {
+        putName(symbols.name(id));
+      }
+      return this;
+    }
+
+    Reply putName(CharSequence text) {
+      byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+      int length = Math.min(bytes.length, 0xffff);
+      ensure(2 + length);
+      buffer.putShort((short) length);
+      buffer.put(bytes, 0, length);
+      return this;
+    }
+
+    /**
+     * @return the position a count can be patched in at with setInt
+     */
+    int position() {
+      return buffer.position();
+    }
+
+    void setInt(int position, int value) {
+      buffer.putInt(position, value);
+    }
+
+    /**
+     * close the frame
+     * @return the frame, ready to be written, valid until the next begin
+     */
+    ByteBuffer finish() {
+      buffer.putInt(0, buffer.position() - 4);
+      buffer.flip();
+      return buffer;
+    }
+
+    private void ensure(int bytes) {
+      if (buffer.remaining() < bytes) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+      }
+    }
+
+  }
+
+}
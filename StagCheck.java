@@ -1,9 +1,22 @@
 import java.io.*;
 import java.net.*;
 import java.lang.Process;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 public class StagCheck
 {
+    // commands of the in-process checks, one player through every kind of command
+    private static final String[] SCRIPT = {"look", "get axe", "get potion", "goto forest", "chop tree", "look", "get key",
+            "goto cabin", "open trapdoor", "goto cellar", "hit elf", "drink potion", "inv", "health", "look"};
+
     public static void main(String args[])
     {
         String playerName = "Steve";
@@ -26,7 +39,291 @@ public class StagCheck
         if(response.contains("tree")) System.out.println("SUCCESS");
         else System.out.println("FAIL");
 
+        System.out.print("session...");
+        String[] responses = executeSession(playerName + ": look", playerName + ": goto cabin", playerName + ": inv");
+        if(responses.length == 3 && responses[0].contains("forest") && responses[1].contains("cabin") && responses[2].contains("axe")) System.out.println("SUCCESS");
+        else System.out.println("FAIL");
+
+        System.out.print("batch....");
+        responses = executeBatch(playerName + ": goto forest", playerName + ": look", "Bob: look");
+        if(responses.length == 3 && responses[0].contains("tree") && responses[1].contains("forest") && responses[2].contains("cabin")) System.out.println("SUCCESS");
+        else System.out.println("FAIL");
+
+        System.out.print("binary frame length...");
+        if(closesOnFrameLength(0) && closesOnFrameLength(StagBinary.MAX_FRAME + 1)) System.out.println("SUCCESS");
+        else System.out.println("FAIL");
+
         killOldServer(server);
+
+        checkJournal();
+        checkImage();
+        report("streaming loader", play(newDispatcher("stag.loader", "streaming")).equals(play(newDispatcher())));
+        checkBinary();
+        checkParsing();
+        checkAdmission();
+        checkEviction();
+    }
+
+    /**
+     * an idle player leaves the world and comes back with its inventory, health and location
+     */
+    private static void checkEviction()
+    {
+        StagDispatcher dispatcher = newDispatcher("stag.evict.idle", "1", "stag.evict.tick", "100");
+        for(String command : new String[] {"get axe", "goto forest", "get key", "goto cabin", "open trapdoor", "goto cellar", "hit elf"}) {
+            dispatcher.handleCommand("Ann: " + command);
+        }
+        dispatcher.handleCommand("Bob: goto cellar");
+        boolean evicted = false;
+        for(int i = 0; i < 50 && !evicted; i++) {   // Bob keeps looking until Ann is gone
+            try {
+                Thread.sleep(100);
+            } catch(InterruptedException ie) {
+            }
+            evicted = !dispatcher.handleCommand("Bob: look").contains("Ann");
+        }
+        boolean back = dispatcher.handleCommand("Ann: inv").contains("axe") && dispatcher.handleCommand("Ann: health").contains("health is 2")
+                && dispatcher.handleCommand("Ann: look").contains("cellar") && dispatcher.handleCommand("Bob: look").contains("Ann");
+        report("eviction", evicted && back);
+        dispatcher.close();
+    }
+
+    /**
+     * a player past its burst is shed while others are not, and gets in again once its bucket refilled.
+     * A batch longer than the burst gets in on a full bucket, and a shed batch draws no tokens
+     */
+    private static void checkAdmission()
+    {
+        System.setProperty("stag.admission.burst", "3");
+        StagAdmission admission;
+        try {
+            admission = new StagAdmission(10);   // a token every 100 ms
+        } finally {
+            System.clearProperty("stag.admission.burst");
+        }
+        boolean burst = true;
+        for(int i = 0; i < 3; i++) {
+            burst &= admission.admit("Ann: look");
+            admission.release();
+        }
+        boolean shed = !admission.admit("Ann: look");
+        boolean others = admission.admit("Bob: look");
+        admission.release();
+        report("rate limit", burst && shed && others);
+
+        try {
+            Thread.sleep(250);
+        } catch(InterruptedException ie) {
+        }
+        boolean refilled = admission.admit("Ann: look");
+        admission.release();
+        report("rate limit refill", refilled);
+
+        boolean whole = admission.admit(Collections.nCopies(StagServer.MAX_BATCH, "Cat: look"));   // longer than the burst
+        admission.release();
+        boolean drained = !admission.admit("Cat: look");
+        for(int i = 0; i < 2; i++) {
+            admission.admit("Dan: look");
+            admission.release();
+        }
+        boolean refused = !admission.admit(List.of("Dan: look", "Dan: look", "Eve: look"));
+        boolean kept = admission.admit("Dan: look") && admission.admit("Eve: look");   // a shed batch took nothing
+        admission.release();
+        admission.release();
+        report("rate limit batch", whole && drained && refused && kept);
+        admission.close();
+    }
+
+    /**
+     * a line without ':' is answered MALFORMED however it arrives, and runs of blanks separate words like one
+     */
+    private static void checkParsing()
+    {
+        StagDispatcher dispatcher = newDispatcher();
+        StringBuilder out = new StringBuilder();
+        byte[] buffer = "..Ann look..".getBytes(StandardCharsets.UTF_8);   // the line sits inside a read buffer
+        dispatcher.startCommand(buffer, 2, buffer.length - 2, out);
+        boolean bytes = out.toString().equals(StagParser.MALFORMED);
+        out.setLength(0);
+        dispatcher.handleBatch(List.of("Ann: look", "Ann look"), out);
+        String[] framed = out.toString().split(StagServer.END_OF_RESPONSE);
+        boolean batch = framed.length >= 2 && framed[0].contains("cabin") && framed[1].contains(StagParser.MALFORMED);
+        report("malformed line", dispatcher.handleCommand("Ann look").equals(StagParser.MALFORMED) && bytes && batch);
+
+        boolean spaced = dispatcher.handleCommand("Ann:   get \t axe  ").contains("You pick up axe")
+                && dispatcher.handleCommand("Ann:\tgoto    forest").contains("forest now")
+                && dispatcher.handleCommand("Ann: inv").contains("axe");
+        report("whitespace runs", spaced);
+        dispatcher.close();
+    }
+
+    /**
+     * a binary client is dropped when a frame length is out of range
+     */
+    private static boolean closesOnFrameLength(int length)
+    {
+        try(Socket socket = new Socket("127.0.0.1", 8888)) {
+            socket.setSoTimeout(2000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(StagBinary.MAGIC);
+            out.writeInt(length);
+            out.flush();
+            return socket.getInputStream().read() == -1;
+        } catch(IOException ioe) {
+            System.out.println(ioe);
+            return false;
+        }
+    }
+
+    /**
+     * HELLO lists the names ids stand for and ACTION runs a trigger sent as ids, frames whose
+     * own lengths don't add up are answered with ERROR
+     */
+    private static void checkBinary()
+    {
+        StagDispatcher dispatcher = newDispatcher();
+        StagBinary.Reply reply = new StagBinary.Reply();
+        StagBinary.Session session = dispatcher.hello(frame(StagBinary.HELLO, "Ann"), reply);
+        ByteBuffer hello = reply.finish();
+        Map<String, Integer> ids = new HashMap<>();
+        if(session != null && hello.get(4) == StagBinary.HELLO) {
+            hello.position(5);
+            for(int id = 0, count = hello.getInt(); id < count; id++) ids.put(name(hello), id);
+        }
+        ByteBuffer shortName = frame(StagBinary.HELLO, "Ann");
+        shortName.limit(shortName.limit() - 1);   // one byte less than the name length says
+        boolean refused = dispatcher.hello(shortName, reply) == null && reply.finish().get(4) == StagBinary.ERROR;
+        report("binary hello", ids.containsKey("chop") && ids.containsKey("forest") && refused);
+
+        dispatcher.handleCommand("Ann: get axe");
+        dispatcher.handleCommand("Ann: goto forest");
+        ByteBuffer chop = ByteBuffer.allocate(10).put(StagBinary.ACTION).putInt(ids.getOrDefault("chop", -1)).put((byte) 1);
+        chop.putInt(ids.getOrDefault("tree", -1)).flip();
+        dispatcher.handleBinary(session, chop.duplicate(), reply);
+        ByteBuffer text = reply.finish();
+        boolean ran = text.get(4) == StagBinary.TEXT && name(text.position(5)).contains("cut down");
+        chop.limit(chop.limit() - 2);   // subject id cut short
+        dispatcher.handleBinary(session, chop, reply);
+        report("binary action", ran && reply.finish().get(4) == StagBinary.ERROR);
+        dispatcher.close();
+    }
+
+    /**
+     * a request frame of an opcode and a name, without the length prefix the connection reads
+     */
+    private static ByteBuffer frame(byte opcode, String text)
+    {
+        byte[] utf = text.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(3 + utf.length).put(opcode).putShort((short) utf.length).put(utf).flip();
+    }
+
+    private static String name(ByteBuffer reply)
+    {
+        byte[] utf = new byte[reply.getShort() & 0xffff];
+        reply.get(utf);
+        return new String(utf, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * changes a command was answered for survive a crash, and replay stops at a frame whose checksum is off
+     */
+    private static void checkJournal()
+    {
+        Path data = null;
+        try {
+            data = Files.createTempDirectory("stag-check");
+            StagDispatcher crashed = newDispatcher("stag.data", data.toString());
+            crashed.handleCommand("Ann: get axe");
+            crashed.handleCommand("Ann: goto forest");   // no snapshot after this, as if the process died here
+            StagDispatcher recovered = newDispatcher("stag.data", data.toString());
+            report("journal replay", recovered.handleCommand("Ann: inv").contains("axe") && recovered.handleCommand("Ann: look").contains("forest"));
+            crashed.close();
+            recovered.close();
+
+            List<Long> generations = StagJournal.generations(data);   // a write cut short leaves half a frame behind
+            Path newest = StagJournal.file(data, generations.get(generations.size() - 1));
+            Files.write(newest, new byte[] {0, 0, 0, 40, 1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+            recovered = newDispatcher("stag.data", data.toString());
+            report("journal torn tail", recovered.handleCommand("Ann: inv").contains("axe"));
+            recovered.close();
+        } catch(IOException ioe) {
+            System.out.println(ioe);
+        } finally {
+            deleteTree(data);
+        }
+
+        StagJournal.Records records = new StagJournal.Records();
+        records.playerMoved("Ann", "cabin");
+        records.inventoryAdded("Ann", "axe", 1);
+        ByteBuffer frames = records.buffer();
+        int last = frames.limit() - 1;
+        frames.put(last, (byte) (frames.get(last) ^ 1));   // a flipped bit in the second frame
+        report("journal bad checksum", StagJournal.replay(frames, new StagJournal.Records()) == 1);
+    }
+
+    /**
+     * a compiled world image plays exactly like the text files it was compiled from
+     */
+    private static void checkImage()
+    {
+        Path image = null;
+        try {
+            image = Files.createTempFile("stag-check", ".image");
+            StagState compiled = new StagState("entities.dot", "actions.json");
+            WorldImage.write(image, compiled, "entities.dot", "actions.json");
+            compiled.close();
+            StagState scratch = new StagState("entities.dot", "actions.json");
+            boolean usable = WorldImage.read(image, "entities.dot", "actions.json", new World(), scratch);   // not fallen back on the text files
+            scratch.close();
+            report("world image", usable && play(newDispatcher("stag.image", image.toString())).equals(play(newDispatcher())));
+        } catch(IOException ioe) {
+            System.out.println(ioe);
+        } finally {
+            deleteTree(image);
+        }
+    }
+
+    /**
+     * run SCRIPT as a new player and close the dispatcher
+     * @return every response, in order
+     */
+    private static String play(StagDispatcher dispatcher)
+    {
+        StringBuilder responses = new StringBuilder();
+        for(String command : SCRIPT) responses.append(dispatcher.handleCommand("Ann: " + command)).append('\n');
+        dispatcher.close();
+        return responses.toString();
+    }
+
+    /**
+     * a dispatcher over a new game state, built with the given system properties set
+     * @param properties names and values, cleared again once the state is built
+     */
+    private static StagDispatcher newDispatcher(String... properties)
+    {
+        for(int i = 0; i < properties.length; i += 2) System.setProperty(properties[i], properties[i + 1]);
+        try {
+            return new StagDispatcher(new StagState("entities.dot", "actions.json"));
+        } finally {
+            for(int i = 0; i < properties.length; i += 2) System.clearProperty(properties[i]);
+        }
+    }
+
+    private static void report(String check, boolean passed)
+    {
+        System.out.print(check + "...");
+        if(passed) System.out.println("SUCCESS");
+        else System.out.println("FAIL");
+    }
+
+    private static void deleteTree(Path root)
+    {
+        if(root == null) return;
+        try(Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch(IOException ioe) {
+            System.out.println(ioe);
+        }
     }
 
     private static Process startNewServer()
@@ -67,6 +364,57 @@ public class StagCheck
         }
     }
 
+    public static String[] executeSession(String... commands)
+    {
+        try {
+            String[] responses = new String[commands.length];
+            String incoming;
+            Socket socket = new Socket("127.0.0.1", 8888);
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.write(StagServer.SESSION + "\n");
+            for(int i = 0; i < commands.length; i++) {
+                out.write(commands[i] + "\n");
+                out.flush();
+                responses[i] = "";
+                while((incoming = in.readLine()) != null && !incoming.equals(StagServer.END_OF_RESPONSE)) responses[i] = responses[i] + incoming + "\n";
+            }
+            in.close();
+            out.close();
+            socket.close();
+            return responses;
+        } catch(IOException ioe) {
+            System.out.println(ioe);
+            return new String[0];
+        }
+    }
+
+    public static String[] executeBatch(String... commands)
+    {
+        try {
+            String[] responses = new String[commands.length];
+            String incoming;
+            Socket socket = new Socket("127.0.0.1", 8888);
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.write(StagServer.SESSION + "\n");
+            out.write(StagServer.BATCH + commands.length + "\n");
+            for(String command : commands) out.write(command + "\n");
+            out.flush();   // whole batch in one write, all responses come back together
+            for(int i = 0; i < commands.length; i++) {
+                responses[i] = "";
+                while((incoming = in.readLine()) != null && !incoming.equals(StagServer.END_OF_RESPONSE)) responses[i] = responses[i] + incoming + "\n";
+            }
+            in.close();
+            out.close();
+            socket.close();
+            return responses;
+        } catch(IOException ioe) {
+            System.out.println(ioe);
+            return new String[0];
+        }
+    }
+
     private static void killOldServer(Process server)
     {
         try {
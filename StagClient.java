@@ -9,27 +9,39 @@ public class StagClient
         else {
             String playerName = args[0];
             BufferedReader commandLine = new BufferedReader(new InputStreamReader(System.in));
-            while(true) handleNextCommand(commandLine, playerName);
+            while(true) runSession(commandLine, playerName);
         }
     }
 
-    private static void handleNextCommand(BufferedReader commandLine, String playerName)
+    private static void runSession(BufferedReader commandLine, String playerName)
     {
         try {
-            String incoming;
-            System.out.print("\n" + playerName + ": ");
-            String command = commandLine.readLine();
-            Socket socket = new Socket("127.0.0.1", 8888);
+            Socket socket = new Socket("127.0.0.1", 8888);   // one connection for the whole session
             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out.write(playerName + ": " + command + "\n");
+            out.write(StagServer.SESSION + "\n");
             out.flush();
-            while((incoming = in.readLine()) != null) System.out.println(incoming);
+            while(handleNextCommand(commandLine, in, out, playerName));
             in.close();
             out.close();
             socket.close();
         } catch(IOException ioe) {
-            System.out.println(ioe);
+            System.out.println(ioe);   // server gone or idle timeout, next loop reconnects
         }
     }
+
+    private static boolean handleNextCommand(BufferedReader commandLine, BufferedReader in, BufferedWriter out, String playerName) throws IOException
+    {
+        String incoming;
+        System.out.print("\n" + playerName + ": ");
+        String command = commandLine.readLine();
+        if(command == null) System.exit(0);
+        out.write(playerName + ": " + command + "\n");
+        out.flush();
+        while((incoming = in.readLine()) != null) {
+            if(incoming.equals(StagServer.END_OF_RESPONSE)) return true;
+            System.out.println(incoming);
+        }
+        return false;   // server closed the connection
+    }
 }
@@ -0,0 +1,24 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * compiles an entity file and an action file into a world image that StagServer
+ * loads with -Dstag.image=<image-file>
+ */
+public class StagCompiler
+{
+    public static void main(String args[])
+    {
+        if(args.length != 3) System.out.println("Usage: java StagCompiler <entity-file> <action-file> <image-file>");
+        else {
+            try {
+                long start = System.nanoTime();
+                StagState state = new StagState(args[0], args[1]);
+                WorldImage.write(Paths.get(args[2]), state, args[0], args[1]);
+                System.out.println("Compiled " + args[2] + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            } catch(IOException ioe) {
+                System.err.println(ioe);
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * this is a StagDispatcher class that turns "username: command" lines into calls on the game state,
+ * it is shared by the different server engines
+ */
+class StagDispatcher implements StagHandler {
+
+  static final String NOT_A_PEER = "Shard control lines are only taken from other shards";
+
+  private StagState stagState;   // game state commands run against
+  private StagGameLoop gameLoop; // single game thread running every command, null when commands run on the caller's thread
+  private final StagMetrics metrics = StagMetrics.global();
+  private final StagParser parser;    // resolves the words of a line to ids, built once the world is loaded
+  private final ThreadLocal<StagParser.Command> commands;   // the line being run on each thread, reused
+
+  public StagDispatcher(StagState stagState) {
+    this.stagState = stagState;
+    parser = new StagParser(stagState.getWorld().getSymbols());
+    commands = ThreadLocal.withInitial(() -> parser.new Command());
+    if ("single".equals(System.getProperty("stag.writer"))) {
+      if (stagState.getShards() != null) {   // a handoff would block the loop on another shard's loop
+        System.out.println("Single writer mode is not available for sharded worlds, using player locks");
+      } else {
+        gameLoop = new StagGameLoop(this, stagState);
+        stagState.setEvictionRunner(step -> gameLoop.submitTask(step).join());   // evict between commands, they take no player locks
+      }
+    }
+  }
+
+  /**
+   * the single-writer game loop, engines that can wait asynchronously submit to it directly
+   * @return null unless -Dstag.writer=single
+   */
+  public StagGameLoop getGameLoop() {
+    return gameLoop;
+  }
+
+  /**
+   * drop the metrics of the game loop and the state, once no engine runs commands here
+   */
+  public void close() {
+    if (gameLoop != null) {
+      gameLoop.close();
+    }
+    stagState.close();
+  }
+
+  /**
+   * what other shards talk to, on a link of their own: "#handoff" and "#release" lines and nothing else,
+   * see StagShards. Client connections never reach it
+   * @return null when the world is not sharded
+   */
+  public StagHandler getPeerHandler() {
+    return stagState.getShards() == null ? null : new PeerHandler();
+  }
+
+  /**
+   * runs the control lines of a peer link against this shard
+   */
+  private class PeerHandler implements StagHandler {
+
+    public void handleCommand(String line, StringBuilder out) {
+      if (line.startsWith(StagShards.HANDOFF)) {   // another shard hands a player over
+        stagState.receivePlayer(line, out);
+        stagState.awaitDurable();   // the sender drops the player once this answers
+      } else if (line.startsWith(StagShards.RELEASE)) {
+        stagState.releasePlayer(line.substring(StagShards.RELEASE.length()));
+      } else {
+        out.append("Only shard control lines are taken here");
+      }
+    }
+
+    public void handleBatch(List<String> lines, StringBuilder out) {
+      for (String line: lines) {
+        out.append("server: \n");
+        handleCommand(line, out);
+        out.append('\n').append(StagServer.END_OF_RESPONSE).append('\n');
+      }
+    }
+
+  }
+
+  /**
+   * subscribe a connection to the location of a player in this game state
+   * @param player player name
+   * @param ready told whenever a frame is queued, may be null
+   * @return
+   */
+  public StagEvents.Subscriber subscribe(String player, Runnable ready) {
+    return stagState.getEvents().subscribe(player, ready);
+  }
+
+  /**
+   * run one "username: command" line against the game state
+   * @param line command line from the client
+   * @return
+   */
+  public String handleCommand(String line) {
+    StringBuilder out = new StringBuilder();
+    handleCommand(line, out);
+    return out.toString();
+  }
+
+  /**
+   * run one "username: command" line against the game state, append the response to out
+   * @param line command line from the client
+   * @param out response buffer, callers reuse it across commands
+   */
+  public void handleCommand(String line, StringBuilder out) {
+    if (gameLoop != null) {
+      out.append(gameLoop.submit(line).join());
+      return;
+    }
+    startCommand(line, out);
+    stagState.awaitDurable();   // reply only once the command's changes are journaled
+  }
+
+  /**
+   * run one "username: command" line, the response may only be sent once its changes are journaled
+   * @param line command line from the client
+   * @param out response buffer
+   * @return completed once the changes are durable
+   */
+  public CompletableFuture<Void> startCommand(String line, StringBuilder out) {
+    if (gameLoop != null) {
+      out.append(gameLoop.submit(line).join());
+      return StagJournal.DURABLE;
+    }
+    if (StagShards.isControl(line)) {   // shards send these on their peer link, never through here
+      out.append(NOT_A_PEER);
+      return StagJournal.DURABLE;
+    }
+    StagParser.Command command = commands.get();
+    if (!parser.parse(line, command)) {
+      out.append(StagParser.MALFORMED);
+      return StagJournal.DURABLE;
+    }
+    run(command, out);
+    return stagState.whenDurable();
+  }
+
+  /**
+   * run one "username: command" line read into a buffer, the words are resolved where they lie
+   * @param line bytes holding the line
+   * @param from first byte of the line
+   * @param to end of the line, no line break
+   * @param out response buffer, callers reuse it across commands
+   */
+  public void handleCommand(byte[] line, int from, int to, StringBuilder out) {
+    startCommand(line, from, to, out);
+    stagState.awaitDurable();
+  }
+
+  /**
+   * run one "username: command" line read into a buffer, the response may only be sent once its changes are journaled
+   * @param line bytes holding the line
+   * @param from first byte of the line
+   * @param to end of the line, no line break
+   * @param out response buffer
+   * @return completed once the changes are durable
+   */
+  public CompletableFuture<Void> startCommand(byte[] line, int from, int to, StringBuilder out) {
+    if (gameLoop != null || to > from && line[from] == '#') {   // queued, or perhaps a control line, as a String
+      return startCommand(new String(line, from, to - from, StandardCharsets.UTF_8), out);
+    }
+    StagParser.Command command = commands.get();
+    if (!parser.parse(line, from, to, command)) {
+      out.append(StagParser.MALFORMED);
+      return StagJournal.DURABLE;
+    }
+    run(command, out);
+    return stagState.whenDurable();
+  }
+
+  /**
+   * run a parsed command under the player's lock, the lock is not held while the journal writes its changes
+   */
+  private void run(StagParser.Command command, StringBuilder out) {
+    Lock lock = stagState.lockPlayer(command.getUsername());   // one command per player at a time, other players run in parallel
+    try {
+      execute(command, out);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * run a batch of command lines in order, consecutive lines of the same player share one
+   * acquisition of the player's lock, and the whole batch one wait for the journal. Every response is framed
+   * as in a session, "server: " line first and END_OF_RESPONSE line last; a command that fails
+   * gets an empty response and the rest of the batch still runs.
+   * @param lines command lines from the client
+   * @param out response buffer all the framed responses are appended to
+   */
+  public void handleBatch(List<String> lines, StringBuilder out) {
+    startBatch(lines, out);
+    stagState.awaitDurable();
+  }
+
+  /**
+   * run a batch of command lines like handleBatch, the responses may only be sent once their changes are journaled
+   * @param lines command lines from the client
+   * @param out response buffer
+   * @return completed once the changes are durable
+   */
+  public CompletableFuture<Void> startBatch(List<String> lines, StringBuilder out) {
+    if (gameLoop != null) {
+      out.append(gameLoop.submitBatch(lines).join());
+      return StagJournal.DURABLE;
+    }
+    int next = 0;
+    while (next < lines.size()) {
+      String line = lines.get(next);
+      if (line.indexOf(':') < 0 || StagShards.isControl(line)) {   // answered MALFORMED or NOT_A_PEER, no player to lock
+        executeBatch(lines, next, next + 1, out);
+        next++;
+        continue;
+      }
+      String username = usernameOf(line);
+      int end = next + 1;
+      while (end < lines.size() && username.equals(usernameOf(lines.get(end)))) {
+        end++;
+      }
+      Lock lock = stagState.lockPlayer(username);
+      try {
+        executeBatch(lines, next, end, out);
+      } finally {
+        lock.unlock();
+      }
+      next = end;
+    }
+    return stagState.whenDurable();   // the last change of the batch is the newest of this thread
+  }
+
+  /**
+   * run a batch of command lines with framed responses, no locks are taken
+   * @param lines command lines
+   * @param out response buffer
+   */
+  void executeBatch(List<String> lines, StringBuilder out) {
+    executeBatch(lines, 0, lines.size(), out);
+  }
+
+  private void executeBatch(List<String> lines, int from, int to, StringBuilder out) {
+    for (int next = from; next < to; next++) {
+      out.append("server: \n");
+      int mark = out.length();
+      try {
+        execute(lines.get(next), out);
+      } catch (RuntimeException e) {   // malformed or failing command, drop its partial response
+        System.err.println(e);
+        out.setLength(mark);
+      }
+      out.append('\n').append(StagServer.END_OF_RESPONSE).append('\n');
+    }
+  }
+
+  static String usernameOf(String line) {
+    int colon = line.indexOf(':');
+    return colon < 0 ? line : line.substring(0, colon);
+  }
+
+  /**
+   * run one command line, caller holds the player's lock or is the game loop
+   * @param line command line from the client
+   * @param out response buffer
+   */
+  void execute(String line, StringBuilder out) {
+    if (StagShards.isControl(line)) {
+      out.append(NOT_A_PEER);
+      return;
+    }
+    StagParser.Command command = commands.get();
+    if (!parser.parse(line, command)) {
+      out.append(StagParser.MALFORMED);
+      return;
+    }
+    execute(command, out);
+  }
+
+  private void execute(StagParser.Command command, StringBuilder out) {
+    String username = command.getUsername();
+    int redirect = stagState.redirectFor(username);
+    if (redirect >= 0) {   // player is held by another shard, the router sends the command there
+      out.append(StagShards.REDIRECT).append(redirect);
+      return;
+    }
+    int type = command.getVerb();
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      runCommand(username, command, out);
+      failed = false;
+    } finally {
+      metrics.recordCommand(type, System.nanoTime() - start, failed);
+    }
+    int moved = stagState.movedTo(username);
+    if (moved >= 0) {   // handed over to another shard, tell the router
+      out.append('\n').append(StagShards.MOVED).append(moved);
+    }
+  }
+
+  /**
+   * start a binary session, the request names the player and the reply lists the names of the world
+   * @param request HELLO frame
+   * @param reply
+   * @return
+   */
+  public StagBinary.Session hello(ByteBuffer request, StagBinary.Reply reply) {
+    Symbols symbols = stagState.getWorld().getSymbols();
+    if (request.remaining() < 3 || request.get() != StagBinary.HELLO
+        || (request.getShort(request.position()) & 0xffff) != request.remaining() - 2) {
+      reply.begin(symbols, 0, StagBinary.ERROR).putName("Expected HELLO");
+      return null;
+    }
+    byte[] name = new byte[request.getShort() & 0xffff];
+    request.get(name);
+    int known = symbols.sealed();   // later ids are players, sent with their names
+    reply.begin(symbols, known, StagBinary.HELLO).putInt(known);
+    for (int id = 0; id < known; id++) {
+      reply.putName(symbols.name(id));
+    }
+    return new StagBinary.Session(new String(name, StandardCharsets.UTF_8), known);
+  }
+
+  /**
+   * run one binary request, under the player's lock or on the game loop like a command line
+   * @param session connection's session
+   * @param request request frame, opcode first
+   * @param reply
+   */
+  public void handleBinary(StagBinary.Session session, ByteBuffer request, StagBinary.Reply reply) {
+    startBinary(session, request, reply);
+    stagState.awaitDurable();
+  }
+
+  /**
+   * run one binary request like handleBinary, the reply may only be sent once its changes are journaled
+   * @param session connection's session
+   * @param request request frame, opcode first
+   * @param reply
+   * @return completed once the changes are durable
+   */
+  public CompletableFuture<Void> startBinary(StagBinary.Session session, ByteBuffer request, StagBinary.Reply reply) {
+    if (gameLoop != null) {
+      gameLoop.submitBinary(session, request, reply).join();
+      return StagJournal.DURABLE;
+    }
+    Lock lock = stagState.lockPlayer(session.username);
+    try {
+      executeBinary(session, request, reply);
+    } finally {
+      lock.unlock();
+    }
+    return stagState.whenDurable();
+  }
+
+  /**
+   * run one binary request, caller holds the player's lock or is the game loop.
+   * Ids are read straight out of the frame, no text is parsed
+   * @param session
+   * @param request
+   * @param reply
+   */
+  void executeBinary(StagBinary.Session session, ByteBuffer request, StagBinary.Reply reply) {
+    reply.begin(stagState.getWorld().getSymbols(), session.known, StagBinary.TEXT);
+    byte opcode = request.get();
+    int redirect = stagState.redirectFor(session.username);
+    if (redirect >= 0) {   // player is held by another shard, the client connects there
+      reply.restart(StagBinary.REDIRECT).putInt(redirect);
+      return;
+    }
+    int type = StagBinary.commandType(opcode);
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      runBinary(session.username, opcode, request, reply);
+      failed = false;
+    } catch (RuntimeException e) {   // unknown ids or a short frame
+      reply.restart(StagBinary.ERROR).putName(e.getMessage() != null ? e.getMessage() : e.toString());
+    } finally {
+      metrics.recordCommand(type, System.nanoTime() - start, failed);
+    }
+  }
+
+  private void runBinary(String username, byte opcode, ByteBuffer request, StagBinary.Reply reply) {
+    Player player = stagState.findPlayer(username);
+    switch (opcode) {
+      case StagBinary.INVENTORY:
+        stagState.inventory(player, reply);
+        break;
+      case StagBinary.GET:
+        reply.putName(stagState.pickUp(player, nameOf(request.getInt())));
+        break;
+      case StagBinary.DROP:
+        reply.putName(stagState.drop(player, nameOf(request.getInt())));
+        break;
+      case StagBinary.GOTO:
+        stagState.gotoPosition(player, nameOf(request.getInt()), reply);
+        break;
+      case StagBinary.LOOK:
+        stagState.look(player, reply);
+        break;
+      case StagBinary.HEALTH:
+        reply.restart(StagBinary.HEALTH).putInt(player.getHealth());
+        break;
+      case StagBinary.ACTION:
+        StagParser.Command command = commands.get();   // trigger and subjects, as a parsed line would give
+        command.reset(StagParser.ACTION);
+        command.add(request.getInt());
+        for (int i = request.get() & 0xff; i > 0; i--) {
+          command.add(request.getInt());
+        }
+        for (int i = 0; i < command.size(); i++) {
+          nameOf(command.ids()[i]);   // check every id before running anything
+        }
+        reply.putName(processAction(player, command));
+        break;
+      default:
+        reply.restart(StagBinary.ERROR).putName("Unknown opcode " + opcode);
+    }
+  }
+
+  private String nameOf(int id) {
+    String name = stagState.getWorld().getSymbols().find(id);
+    if (name == null) {
+      throw new IllegalArgumentException("Unknown id " + id);
+    }
+    return name;
+  }
+
+  private void runCommand(String username, StagParser.Command command, StringBuilder out) {
+    Player player = stagState.findPlayer(username);   // user username to find player
+    int verb = command.getVerb();
+    if (verb != StagParser.ACTION && verb != StagParser.INVENTORY && verb != StagParser.LOOK
+        && verb != StagParser.HEALTH && command.size() < 2) {
+      out.append("Your command needs a subject.");
+      return;
+    }
+    switch (verb) {
+      case StagParser.INVENTORY:
+        out.append(player.showInventory());    // inv cmd
+        break;
+      case StagParser.GET:     // get cmd
+        out.append(stagState.pickUp(player, command.word(1)));
+        break;
+      case StagParser.DROP:    // drop cmd
+        out.append(stagState.drop(player, command.word(1)));
+        break;
+      case StagParser.GOTO:   // goto cmd
+        stagState.gotoPosition(player, command.word(1), out);
+        break;
+      case StagParser.LOOK:  // look cmd
+        stagState.look(player, out);
+        break;
+      case StagParser.HEALTH: // health cmd
+        out.append("Your health is ").append(player.getHealth()).append(" now");
+        break;
+      default:   // other action cmd
+        out.append(processAction(player, command));
+    }
+  }
+
+  private String processAction(Player player, StagParser.Command command) {
+    String trigger = command.size() == 0 ? null : command.word(0);
+    return stagState.processAction(player, trigger, command.subjects(), command.ids(), 1, command.size());
+  }
+
+}
@@ -0,0 +1,350 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * this is a StagEvents class, it pushes what changes in a location to the connections subscribed
+ * to a player standing there, so they don't have to poll with look.
+ *
+ * a session line "#subscribe <player>" subscribes the connection to the player the session plays, the one
+ * named by its first command line; from then on it also receives
+ * event frames, each ending with an END_OF_RESPONSE line like a response does:
+ *   "#event <location>" then "add <type> <entity> <count>", "remove <entity> <count>" and "exit <location>" lines
+ *   "#enter <location>" the player arrived somewhere else, describe it with look
+ *   "#resync <location>" events were dropped because the connection fell behind, look again
+ * a subscription follows its player from location to location.
+ *
+ * changes are collected per location and sent once per tick (-Dstag.events.tick milliseconds), adds and
+ * removes of the same entity within a tick are netted. A location's frame is rendered once and queued to
+ * each of its subscribers; a queue holds at most -Dstag.events.queue frames, a subscriber that is that far
+ * behind loses them and gets a resync instead, so a slow client never holds up the game or other clients.
+ */
+public class StagEvents implements WorldChanges {
+
+  static final String SUBSCRIBE = "#subscribe ";   // "#subscribe <player>", session line
+  static final String EVENT = "#event ";
+  static final String ENTER = "#enter ";
+  static final String RESYNC = "#resync ";
+  static final String NOT_OWN = "A session can only subscribe to the player it plays";
+
+  private final int tick = Integer.getInteger("stag.events.tick", 50);
+  private final int capacity = Integer.getInteger("stag.events.queue", 64);
+
+  private final Map<String, Set<Subscriber>> byLocation = new ConcurrentHashMap<>();  // location name -> subscribers there
+  private final Map<String, Set<Subscriber>> byPlayer = new ConcurrentHashMap<>();    // player name -> its subscribers
+  // player name -> location name, its per-key compute orders moves against subscribe and cancel
+  private final ConcurrentHashMap<String, String> playerAt = new ConcurrentHashMap<>();
+  private final Map<String, Deltas> pending = new ConcurrentHashMap<>();   // location name -> changes this tick
+  private volatile boolean started;   // tick thread runs once someone subscribed
+
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder overflows = new LongAdder();
+  private final List<StagMetrics.Gauge> gauges = new ArrayList<>();
+
+  public StagEvents() {
+    StagMetrics metrics = StagMetrics.global();
+    gauges.add(metrics.gauge("stag_subscribers", () -> byPlayer.values().stream().mapToLong(Set::size).sum()));
+    gauges.add(metrics.gauge("stag_event_frames_total", sent::sum));
+    gauges.add(metrics.gauge("stag_event_overflows_total", overflows::sum));
+  }
+
+  /**
+   * drop the gauges, once the state reporting here is closed
+   */
+  public void close() {
+    StagMetrics.close(gauges);
+  }
+
+  /**
+   * one subscribed connection, its engine takes frames off the queue and writes them
+   */
+  public class Subscriber {
+
+    private final String player;
+    private final BlockingQueue<String> frames = new ArrayBlockingQueue<>(capacity);
+    private final Runnable ready;   // told a frame was queued, may be null
+    private volatile String location;   // where the player stands, null while it is not in the game
+
+    private Subscriber(String player, Runnable ready) {
+      this.player = player;
+      this.ready = ready;
+    }
+
+    public String getPlayer() {
+      return player;
+    }
+
+    /**
+     * next frame, without waiting
+     * @return null if none is queued
+     */
+    public String poll() {
+      return frames.poll();
+    }
+
+    /**
+     * next frame, waiting for one
+     * @return
+     * @throws InterruptedException
+     */
+    public String take() throws InterruptedException {
+      return frames.take();
+    }
+
+    /**
+     * stop receiving frames, the connection closed
+     */
+    public void cancel() {
+      unsubscribe(this);
+    }
+
+    private void offer(String frame) {
+      if (!frames.offer(frame)) {   // fell behind, what is queued is stale anyway
+        frames.clear();
+        overflows.increment();
+        frames.offer(RESYNC + (location == null ? "-" : location) + "\n" + StagServer.END_OF_RESPONSE + "\n");
+      }
+      if (ready != null) {
+        ready.run();
+      }
+    }
+
+  }
+
+  /**
+   * the player a command line plays, the one its session may subscribe to
+   * @param line "username: command"
+   * @return null if the line has no ':'
+   */
+  static String playerOf(String line) {
+    int colon = line.indexOf(':');
+    return colon < 0 ? null : line.substring(0, colon);
+  }
+
+  /**
+   * the player a command line still in its read buffer plays
+   * @param line bytes holding the line
+   * @param from first byte of the line
+   * @param to end of the line
+   * @return null if the line has no ':'
+   */
+  static String playerOf(byte[] line, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (line[i] == ':') {
+        return new String(line, from, i - from, StandardCharsets.UTF_8);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * subscribe a connection to the location of a player, it follows the player when it moves
+   * @param player player name
+   * @param ready told whenever a frame is queued, null for engines that wait in take()
+   * @return
+   */
+  public Subscriber subscribe(String player, Runnable ready) {
+    Subscriber subscriber = new Subscriber(player, ready);
+    playerAt.compute(player, (key, location) -> {
+      byPlayer.computeIfAbsent(player, name -> ConcurrentHashMap.newKeySet()).add(subscriber);
+      place(subscriber, location);
+      return location;
+    });
+    if (!started) {
+      start();
+    }
+    return subscriber;
+  }
+
+  private void unsubscribe(Subscriber subscriber) {
+    playerAt.compute(subscriber.player, (key, location) -> {
+      byPlayer.computeIfPresent(subscriber.player, (name, subscribers) -> {
+        subscribers.remove(subscriber);
+        return subscribers.isEmpty() ? null : subscribers;
+      });
+      place(subscriber, null);
+      return location;
+    });
+  }
+
+  /**
+   * move a subscriber to the subscribers of a location, called inside playerAt.compute for its player
+   */
+  private void place(Subscriber subscriber, String location) {
+    if (subscriber.location != null) {   // a location nobody watches any more drops out of the map
+      byLocation.computeIfPresent(subscriber.location, (key, there) -> {
+        there.remove(subscriber);
+        return there.isEmpty() ? null : there;
+      });
+    }
+    subscriber.location = location;
+    if (location != null) {
+      byLocation.compute(location, (key, there) -> {
+        if (there == null) {
+          there = ConcurrentHashMap.newKeySet();
+        }
+        there.add(subscriber);
+        return there;
+      });
+    }
+  }
+
+  private synchronized void start() {
+    if (started) {
+      return;
+    }
+    ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "stag-events");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ticker.scheduleAtFixedRate(this::flush, tick, tick, TimeUnit.MILLISECONDS);
+    started = true;
+  }
+
+  /**
+   * send what changed since the last tick, one frame per location
+   */
+  private void flush() {
+    try {
+      for (String location: pending.keySet()) {
+        Deltas deltas = pending.remove(location);
+        String frame = deltas.close(location);
+        Set<Subscriber> subscribers = byLocation.get(location);
+        if (frame == null || subscribers == null) {
+          continue;   // everything netted out, or nobody listens any more
+        }
+        for (Subscriber subscriber: subscribers) {
+          subscriber.offer(frame);
+          sent.increment();
+        }
+      }
+    } catch (RuntimeException e) {   // keep ticking
+      System.err.println(e);
+    }
+  }
+
+  private boolean watched(String location) {
+    Set<Subscriber> subscribers = byLocation.get(location);
+    return subscribers != null && !subscribers.isEmpty();
+  }
+
+  /**
+   * changes of a location this tick, closed once the tick thread has taken them
+   */
+  private static class Deltas {
+
+    private final Map<String, int[]> counts = new LinkedHashMap<>();   // entity -> net count change, first change first
+    private final Map<String, String> types = new HashMap<>();        // entity -> type it was added as
+    private final List<String> exits = new ArrayList<>();
+    private boolean closed;
+
+    synchronized boolean entity(String type, String entity, int count) {
+      if (closed) {
+        return false;
+      }
+      counts.computeIfAbsent(entity, key -> new int[1])[0] += count;
+      if (type != null) {
+        types.put(entity, type);
+      }
+      return true;
+    }
+
+    synchronized boolean exit(String to) {
+      if (closed) {
+        return false;
+      }
+      exits.add(to);
+      return true;
+    }
+
+    /**
+     * @param location
+     * @return the frame, or null if nothing is left to say
+     */
+    synchronized String close(String location) {
+      closed = true;
+      StringBuilder frame = new StringBuilder(EVENT).append(location).append('\n');
+      int header = frame.length();
+      for (Map.Entry<String, int[]> change: counts.entrySet()) {
+        int count = change.getValue()[0];
+        if (count > 0) {
+          frame.append("add ").append(types.get(change.getKey())).append(' ').append(change.getKey()).append(' ')
+              .append(count).append('\n');
+        } else if (count < 0) {
+          frame.append("remove ").append(change.getKey()).append(' ').append(-count).append('\n');
+        }
+      }
+      for (String exit: exits) {
+        frame.append("exit ").append(exit).append('\n');
+      }
+      if (frame.length() == header) {
+        return null;
+      }
+      return frame.append(StagServer.END_OF_RESPONSE).append('\n').toString();
+    }
+
+  }
+
+  /**
+   * record an entity change, a location nobody watches costs one map lookup
+   */
+  private void entity(String location, String type, String entity, int count) {
+    if (!watched(location)) {
+      return;
+    }
+    while (!pending.computeIfAbsent(location, key -> new Deltas()).entity(type, entity, count)) {
+      // the tick thread took this one meanwhile, the next goes out with the next tick
+    }
+  }
+
+  public void entityAdded(String location, String type, String entity, int count) {
+    entity(location, type, entity, count);
+  }
+
+  public void entityRemoved(String location, String entity, int count) {
+    entity(location, null, entity, -count);
+  }
+
+  public void exitAdded(String from, String to) {
+    if (!watched(from)) {
+      return;
+    }
+    while (!pending.computeIfAbsent(from, key -> new Deltas()).exit(to)) {
+      // taken by the tick thread, try a fresh one
+    }
+  }
+
+  public void playerMoved(String player, String location) {
+    playerAt.compute(player, (key, from) -> {
+      Set<Subscriber> subscribers = byPlayer.get(player);
+      if (subscribers != null) {
+        for (Subscriber subscriber: subscribers) {
+          place(subscriber, location);
+          subscriber.offer(ENTER + location + "\n" + StagServer.END_OF_RESPONSE + "\n");
+        }
+      }
+      return location;
+    });
+  }
+
+  public void playerRemoved(String player) {
+    playerAt.compute(player, (key, from) -> {
+      Set<Subscriber> subscribers = byPlayer.get(player);
+      if (subscribers != null) {
+        for (Subscriber subscriber: subscribers) {
+          place(subscriber, null);   // until it joins again
+        }
+      }
+      return null;
+    });
+  }
+
+  public void inventoryAdded(String player, String item, int count) {}
+
+  public void inventoryRemoved(String player, String item, int count) {}
+
+  public void healthChanged(String player, int health) {}
+
+}
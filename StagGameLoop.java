@@ -0,0 +1,311 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * this is a StagGameLoop class, a single game thread that runs every command (-Dstag.writer=single).
+ * Network threads hand it command lines through a bounded lock-free multi-producer ring buffer
+ * and get the response back through a CompletableFuture, so commands run one after another in
+ * arrival order and never wait on player locks. Commands drained together share one journal
+ * write, their responses are released by the journal once it is durable while the game thread goes on.
+ *
+ * time a command spends queued and time it spends running are counted separately.
+ */
+class StagGameLoop implements Runnable {
+
+  private static final int MAX_DRAIN = 256;   // most commands whose responses wait for one journal write
+
+  private final StagDispatcher dispatcher;   // runs a command, locks are not needed on this thread
+  private final StagState stagState;
+  private final Slot[] slots;                // ring buffer, capacity a power of two
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();   // next sequence producers claim
+  private long head;                         // next sequence the game thread takes, game thread only
+  private volatile Thread sleeping;          // game thread while it is parked, null while it runs
+  private CompletableFuture<Void> delivered = StagJournal.DURABLE;   // responses of the last drain handed out, game thread only
+
+  // statistics
+  private final LongAdder commands = new LongAdder();
+  private final LongAdder queueNanos = new LongAdder();
+  private final LongAdder execNanos = new LongAdder();
+  private final List<StagMetrics.Gauge> gauges = new ArrayList<>();
+  private long reportedCommands, reportedQueue, reportedExec;   // totals at the last report, reporter thread only
+
+  /**
+   * one ring buffer entry, sequence says whose turn it is:
+   * equal to its position when free for a producer, position + 1 when filled for the game thread
+   */
+  private static class Slot {
+    volatile long sequence;
+    String line;                   // command line, or null for a batch or a task
+    List<String> batch;            // batch lines, or null for a single command or a task
+    Runnable task;                 // command that writes its own response (binary protocol), or null
+    long enqueued;                 // System.nanoTime() when it was queued
+    CompletableFuture<String> result;
+  }
+
+  /**
+   * create the loop and start its thread, -Dstag.writer.queue sets the ring buffer size
+   * @param dispatcher
+   * @param stagState
+   */
+  StagGameLoop(StagDispatcher dispatcher, StagState stagState) {
+    this.dispatcher = dispatcher;
+    this.stagState = stagState;
+    int capacity = Integer.highestOneBit(Math.max(2, Integer.getInteger("stag.writer.queue", 4096)) * 2 - 1);
+    slots = new Slot[capacity];
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+      slots[i].sequence = i;
+    }
+    mask = capacity - 1;
+    StagMetrics metrics = StagMetrics.global();
+    gauges.add(metrics.gauge("stag_game_loop_commands_total", this::getCommands));
+    gauges.add(metrics.gauge("stag_game_loop_queue_nanos_total", this::getQueueNanos));
+    gauges.add(metrics.gauge("stag_game_loop_exec_nanos_total", this::getExecNanos));
+    Thread thread = new Thread(this, "stag-game");
+    thread.setDaemon(true);
+    thread.start();
+
+    int report = Integer.getInteger("stag.writer.report", 0);   // seconds between latency reports, 0 for none
+    if (report > 0) {
+      ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread reportThread = new Thread(runnable, "stag-game-report");
+        reportThread.setDaemon(true);
+        return reportThread;
+      });
+      reporter.scheduleAtFixedRate(this::report, report, report, TimeUnit.SECONDS);
+    }
+  }
+
+  private void report() {
+    long count = getCommands() - reportedCommands;
+    long queue = getQueueNanos() - reportedQueue;
+    long exec = getExecNanos() - reportedExec;
+    reportedCommands += count;
+    reportedQueue += queue;
+    reportedExec += exec;
+    if (count > 0) {
+      System.out.println("Game loop: " + count + " commands, queued " + queue / count / 1000 + " us, ran "
+          + exec / count / 1000 + " us on average");
+    }
+  }
+
+  /**
+   * drop the loop's gauges, once nothing submits to it any more
+   */
+  void close() {
+    StagMetrics.close(gauges);
+  }
+
+  /**
+   * queue one command line
+   * @param line "username: command" line
+   * @return response text, completed exceptionally if the command failed
+   */
+  public CompletableFuture<String> submit(String line) {
+    return enqueue(line, null, null);
+  }
+
+  /**
+   * queue a batch of command lines, they run back to back
+   * @param lines command lines
+   * @return all the framed responses, see StagDispatcher.handleBatch
+   */
+  public CompletableFuture<String> submitBatch(List<String> lines) {
+    return enqueue(null, lines, null);
+  }
+
+  /**
+   * queue a binary request, see StagDispatcher.executeBinary
+   * @param session connection's session
+   * @param request request frame, owned by the game thread until the result completes
+   * @param reply reply written by the game thread
+   * @return completed with an empty string once the reply is written and its changes are durable
+   */
+  public CompletableFuture<String> submitBinary(StagBinary.Session session, ByteBuffer request, StagBinary.Reply reply) {
+    return enqueue(null, null, () -> dispatcher.executeBinary(session, request, reply));
+  }
+
+  /**
+   * queue a task that runs on the game thread between commands
+   * @param task
+   * @return completed once the task ran and its changes are durable
+   */
+  public CompletableFuture<String> submitTask(Runnable task) {
+    return enqueue(null, null, task);
+  }
+
+  private CompletableFuture<String> enqueue(String line, List<String> batch, Runnable task) {
+    CompletableFuture<String> result = new CompletableFuture<>();
+    while (true) {
+      long sequence = tail.get();
+      Slot slot = slots[(int) sequence & mask];
+      long turn = slot.sequence - sequence;
+      if (turn == 0) {
+        if (tail.compareAndSet(sequence, sequence + 1)) {   // slot is ours
+          slot.line = line;
+          slot.batch = batch;
+          slot.task = task;
+          slot.result = result;
+          slot.enqueued = System.nanoTime();
+          slot.sequence = sequence + 1;   // publish to the game thread
+          Thread game = sleeping;
+          if (game != null) {
+            LockSupport.unpark(game);
+          }
+          return result;
+        }
+      } else if (turn < 0) {   // full, wait for the game thread to catch up
+        LockSupport.parkNanos(10000);
+      }
+    }
+  }
+
+  public void run() {
+    Slot[] drained = new Slot[MAX_DRAIN];
+    String[] responses = new String[MAX_DRAIN];
+    StringBuilder out = new StringBuilder(1024);
+    int idle = 0;
+    while (true) {
+      int count = 0;
+      Slot slot;
+      while (count < MAX_DRAIN && (slot = poll()) != null) {
+        long start = System.nanoTime();
+        queueNanos.add(start - slot.enqueued);
+        out.setLength(0);
+        try {
+          if (slot.task != null) {
+            slot.task.run();
+          } else if (slot.batch == null) {
+            dispatcher.execute(slot.line, out);
+          } else {
+            dispatcher.executeBatch(slot.batch, out);
+          }
+          responses[count] = out.toString();
+        } catch (Throwable e) {   // an Error too, the game thread has to outlive any command
+          slot.result.completeExceptionally(e);
+          slot.result = null;
+          out.setLength(0);
+          out.trimToSize();   // a runaway response may have grown it
+        }
+        execNanos.add(System.nanoTime() - start);
+        drained[count++] = slot;
+      }
+      if (count == 0) {
+        idle = park(idle);
+        continue;
+      }
+      idle = 0;
+      List<CompletableFuture<String>> results = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        results.add(drained[i].result);
+        release(drained[i]);
+        drained[i] = null;
+      }
+      String[] answers = Arrays.copyOf(responses, count);
+      Arrays.fill(responses, 0, count, null);
+      try {
+        CompletableFuture<Void> durable = stagState.whenDurable();   // one journal write for everything drained
+        delivered = CompletableFuture.allOf(delivered, durable)   // after the drain before, on the journal's thread unless already durable
+            .whenComplete((ignored, error) -> deliver(results, answers, error));
+      } catch (Throwable e) {   // the drained commands fail, the loop goes on
+        deliver(results, answers, e);
+      }
+      commands.add(count);
+    }
+  }
+
+  /**
+   * complete the results of drained commands in the order they ran
+   * @param results null for a command that already failed
+   * @param responses
+   * @param error journal failure, or null once the changes are durable
+   */
+  private static void deliver(List<CompletableFuture<String>> results, String[] responses, Throwable error) {
+    for (int i = 0; i < responses.length; i++) {
+      CompletableFuture<String> result = results.get(i);
+      if (result == null) {
+        continue;
+      }
+      if (error != null) {
+        result.completeExceptionally(error);
+      } else {
+        result.complete(responses[i]);
+      }
+    }
+  }
+
+  /**
+   * take the next filled slot, it stays reserved until released
+   * @return null if the ring buffer is empty
+   */
+  private Slot poll() {
+    Slot slot = slots[(int) head & mask];
+    if (slot.sequence != head + 1) {
+      return null;
+    }
+    head++;
+    return slot;
+  }
+
+  private void release(Slot slot) {
+    long sequence = slot.sequence - 1;
+    slot.line = null;
+    slot.batch = null;
+    slot.task = null;
+    slot.result = null;
+    slot.sequence = sequence + slots.length;   // free for the producer one lap ahead
+  }
+
+  /**
+   * spin briefly, then park until a producer publishes
+   * @param idle empty polls so far
+   * @return
+   */
+  private int park(int idle) {
+    if (idle < 100) {
+      Thread.onSpinWait();
+      return idle + 1;
+    }
+    sleeping = Thread.currentThread();
+    if (slots[(int) head & mask].sequence != head + 1) {   // recheck after announcing, a publish may have raced
+      LockSupport.parkNanos(1000000);
+    }
+    sleeping = null;
+    return idle;
+  }
+
+  /**
+   * commands run so far
+   * @return
+   */
+  public long getCommands() {
+    return commands.sum();
+  }
+
+  /**
+   * total nanoseconds commands waited in the ring buffer
+   * @return
+   */
+  public long getQueueNanos() {
+    return queueNanos.sum();
+  }
+
+  /**
+   * total nanoseconds the game thread spent running commands
+   * @return
+   */
+  public long getExecNanos() {
+    return execNanos.sum();
+  }
+
+}
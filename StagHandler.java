@@ -0,0 +1,124 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * this is a StagHandler interface, what a server engine hands command lines to:
+ * the game state of this process (StagDispatcher) or the shards behind it (StagRouter).
+ * The handle methods return once the response may be sent; engines whose threads must not wait
+ * for the journal use the start methods and send the response when the returned future completes.
+ */
+interface StagHandler {
+
+  /**
+   * run one "username: command" line, append the response to out
+   * @param line command line from the client
+   * @param out response buffer
+   */
+  void handleCommand(String line, StringBuilder out);
+
+  /**
+   * run one "username: command" line like handleCommand without waiting for its changes to be durable
+   * @param line command line from the client
+   * @param out response buffer
+   * @return completed once the response may be sent, exceptionally if its changes could not be made durable
+   */
+  default CompletableFuture<Void> startCommand(String line, StringBuilder out) {
+    handleCommand(line, out);
+    return StagJournal.DURABLE;
+  }
+
+  /**
+   * run one "username: command" line still in the buffer it was read into
+   * @param line bytes holding the line
+   * @param from first byte of the line
+   * @param to end of the line, no line break
+   * @param out response buffer
+   */
+  default void handleCommand(byte[] line, int from, int to, StringBuilder out) {
+    handleCommand(new String(line, from, to - from, StandardCharsets.UTF_8), out);
+  }
+
+  /**
+   * run one "username: command" line still in its buffer without waiting for its changes to be durable
+   * @param line bytes holding the line
+   * @param from first byte of the line
+   * @param to end of the line, no line break
+   * @param out response buffer
+   * @return completed once the response may be sent
+   */
+  default CompletableFuture<Void> startCommand(byte[] line, int from, int to, StringBuilder out) {
+    handleCommand(line, from, to, out);
+    return StagJournal.DURABLE;
+  }
+
+  /**
+   * run a batch of command lines, append their framed responses to out
+   * @param lines command lines from the client
+   * @param out response buffer
+   */
+  void handleBatch(List<String> lines, StringBuilder out);
+
+  /**
+   * run a batch of command lines without waiting for their changes to be durable
+   * @param lines command lines from the client
+   * @param out response buffer
+   * @return completed once the responses may be sent
+   */
+  default CompletableFuture<Void> startBatch(List<String> lines, StringBuilder out) {
+    handleBatch(lines, out);
+    return StagJournal.DURABLE;
+  }
+
+  /**
+   * @return the single-writer game loop commands can be submitted to without blocking, or null
+   */
+  default StagGameLoop getGameLoop() {
+    return null;
+  }
+
+  /**
+   * start a binary connection, see StagBinary
+   * @param request HELLO frame
+   * @param reply HELLO reply, or ERROR
+   * @return the session, or null if the request was refused
+   */
+  default StagBinary.Session hello(ByteBuffer request, StagBinary.Reply reply) {
+    reply.begin(null, 0, StagBinary.ERROR).putName("Binary protocol is not available here");
+    return null;
+  }
+
+  /**
+   * run one binary request frame
+   * @param session connection's session
+   * @param request request frame, opcode first
+   * @param reply reply being written
+   */
+  default void handleBinary(StagBinary.Session session, ByteBuffer request, StagBinary.Reply reply) {
+    reply.begin(null, 0, StagBinary.ERROR).putName("Binary protocol is not available here");
+  }
+
+  /**
+   * run one binary request frame without waiting for its changes to be durable
+   * @param session connection's session
+   * @param request request frame, opcode first
+   * @param reply reply being written
+   * @return completed once the reply may be sent
+   */
+  default CompletableFuture<Void> startBinary(StagBinary.Session session, ByteBuffer request, StagBinary.Reply reply) {
+    handleBinary(session, request, reply);
+    return StagJournal.DURABLE;
+  }
+
+  /**
+   * subscribe a connection to the location of a player, see StagEvents
+   * @param player player name
+   * @param ready told whenever a frame is queued, null for engines that wait for frames
+   * @return null if this handler can't push events
+   */
+  default StagEvents.Subscriber subscribe(String player, Runnable ready) {
+    return null;
+  }
+
+}
@@ -0,0 +1,456 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
+
+/**
+ * this is a StagJournal class, a write-ahead journal of game state changes.
+ * Changes are framed into a shared buffer as they happen and a flusher thread writes and forces
+ * whatever has gathered in one go (group commit). A new generation file is started at every
+ * snapshot so recovery only replays changes made since the last snapshot.
+ *
+ * a thread finds out its changes are on disk through a future completed by the flusher, so an engine
+ * that must not block can send its response from there. If a write fails the journal stops: every
+ * change not yet on disk, and every later one, completes its future with the error.
+ */
+public class StagJournal implements WorldChanges {
+
+  static final CompletableFuture<Void> DURABLE = CompletableFuture.completedFuture(null);   // nothing to wait for
+
+  private static final byte ENTITY_ADDED = 1;
+  private static final byte ENTITY_REMOVED = 2;
+  private static final byte EXIT_ADDED = 3;
+  private static final byte PLAYER_MOVED = 4;
+  private static final byte PLAYER_REMOVED = 5;
+  private static final byte INVENTORY_ADDED = 6;
+  private static final byte INVENTORY_REMOVED = 7;
+  private static final byte HEALTH_CHANGED = 8;
+
+  private final Path directory;     // where journal generations live
+  private final boolean sync;       // commands wait until their changes are on disk
+  private final Object io = new Object();   // guard channel, taken before this
+  private FileChannel channel;      // current generation file
+  private long generation;          // current generation number
+
+  private Records pending = new Records();   // framed changes not yet written, guarded by this
+  private Records spare = new Records();     // buffer swapped in while pending is written
+  private long appended;            // changes appended so far, guarded by this
+  private long writing;             // changes taken by the flusher so far, guarded by this
+  private long durable;             // changes known to be on disk, guarded by this
+  private CompletableFuture<Void> pendingDurable = new CompletableFuture<>();   // completed once pending is on disk, guarded by this
+  private CompletableFuture<Void> writingDurable = DURABLE;   // completed once the batch being written is on disk, guarded by this
+  private IOException failure;      // first failed write, nothing is durable after it, guarded by this
+  private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);  // per thread, newest change it appended
+
+  /**
+   * open a new journal generation and start the flusher
+   * @param directory journal directory
+   * @param generation first generation to write
+   * @throws IOException
+   */
+  public StagJournal(Path directory, long generation) throws IOException {
+    this.directory = directory;
+    this.sync = !"false".equals(System.getProperty("stag.journal.sync"));
+    this.generation = generation;
+    channel = open(generation);
+    Thread flusher = new Thread(this::flushLoop, "stag-journal");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * file name of a journal generation
+   * @param directory journal directory
+   * @param generation generation number
+   * @return
+   */
+  public static Path file(Path directory, long generation) {
+    return directory.resolve(String.format("journal-%016d.log", generation));
+  }
+
+  /**
+   * generation numbers of the journal files in a directory, oldest first
+   * @param directory journal directory
+   * @return
+   * @throws IOException
+   */
+  public static List<Long> generations(Path directory) throws IOException {
+    List<Long> generations = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.log")) {
+      for (Path file: files) {
+        String name = file.getFileName().toString();
+        generations.add(Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length())));
+      }
+    }
+    generations.sort(null);
+    return generations;
+  }
+
+  private FileChannel open(long generation) throws IOException {
+    return FileChannel.open(file(directory, generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * finish the current generation and start the next one, callers make sure
+   * nothing is appended meanwhile (snapshot holds every location lock)
+   * @return the new generation number
+   * @throws IOException
+   */
+  public long rotate() throws IOException {
+    synchronized (io) {
+      flush();
+      channel.close();
+      generation++;
+      channel = open(generation);
+      return generation;
+    }
+  }
+
+  /**
+   * wait until every change the calling thread appended is on disk
+   * @throws UncheckedIOException if the journal could not write them
+   */
+  public void awaitDurable() {
+    try {
+      whenDurable().join();
+    } catch (CompletionException e) {
+      throw new UncheckedIOException("Journal write failed", (IOException) e.getCause());
+    }
+  }
+
+  /**
+   * every change the calling thread appended so far, on disk or not yet
+   * @return completed by the flusher once they are on disk, exceptionally if the journal failed first
+   */
+  public CompletableFuture<Void> whenDurable() {
+    if (!sync) {
+      return DURABLE;
+    }
+    long seq = lastAppended.get()[0];
+    synchronized (this) {
+      if (seq <= durable) {
+        return DURABLE;
+      }
+      if (failure != null) {
+        return CompletableFuture.failedFuture(failure);
+      }
+      return seq <= writing ? writingDurable : pendingDurable;
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      try {
+        synchronized (this) {
+          while (pending.size() == 0) {
+            wait();
+          }
+        }
+        synchronized (io) {
+          flush();
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException e) {   // flush failed every waiter, nothing more can be made durable
+        return;
+      }
+    }
+  }
+
+  /**
+   * write and force everything appended so far, caller holds io.
+   * A failed write fails the journal, see whenDurable
+   * @throws IOException
+   */
+  private void flush() throws IOException {
+    Records batch;
+    long seq;
+    CompletableFuture<Void> done;
+    synchronized (this) {
+      if (failure != null) {
+        throw failure;
+      }
+      batch = pending;   // swap buffers so appends go on while this batch is written
+      pending = spare;
+      seq = appended;
+      writing = seq;
+      done = pendingDurable;
+      writingDurable = done;
+      pendingDurable = new CompletableFuture<>();
+    }
+    try {
+      ByteBuffer bytes = batch.buffer();
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      CompletableFuture<Void> next;
+      synchronized (this) {
+        failure = e;
+        next = pendingDurable;
+        pending.clear();   // its changes fail below like the batch, there is no writing them now
+      }
+      System.err.println("Journal write failed, changes are not durable from now on: " + e);
+      done.completeExceptionally(e);
+      next.completeExceptionally(e);
+      throw e;
+    }
+    batch.clear();
+    synchronized (this) {
+      spare = batch;
+      durable = seq;
+    }
+    done.complete(null);   // outside the lock, responses are sent from here
+  }
+
+  private void appended() {
+    appended++;
+    lastAppended.get()[0] = appended;
+    if (failure != null) {
+      pending.clear();   // never written, whenDurable fails its thread's commands
+    } else if (appended == writing + 1) {
+      notify();   // first change since the flusher took its batch, it may be waiting for one
+    }
+  }
+
+  public synchronized void entityAdded(String location, String type, String entity, int count) {
+    pending.entityAdded(location, type, entity, count);
+    appended();
+  }
+
+  public synchronized void entityRemoved(String location, String entity, int count) {
+    pending.entityRemoved(location, entity, count);
+    appended();
+  }
+
+  public synchronized void exitAdded(String from, String to) {
+    pending.exitAdded(from, to);
+    appended();
+  }
+
+  public synchronized void playerMoved(String player, String location) {
+    pending.playerMoved(player, location);
+    appended();
+  }
+
+  public synchronized void playerRemoved(String player) {
+    pending.playerRemoved(player);
+    appended();
+  }
+
+  public synchronized void inventoryAdded(String player, String item, int count) {
+    pending.inventoryAdded(player, item, count);
+    appended();
+  }
+
+  public synchronized void inventoryRemoved(String player, String item, int count) {
+    pending.inventoryRemoved(player, item, count);
+    appended();
+  }
+
+  public synchronized void healthChanged(String player, int health) {
+    pending.healthChanged(player, health);
+    appended();
+  }
+
+  /**
+   * replay framed changes, stops at the first torn or corrupt frame
+   * @param data framed changes
+   * @param target where the changes are applied
+   * @return number of changes replayed
+   */
+  public static long replay(ByteBuffer data, WorldChanges target) {
+    long count = 0;
+    CRC32 crc = new CRC32();
+    while (data.remaining() >= 8) {
+      int length = data.getInt();
+      int checksum = data.getInt();
+      if (length <= 0 || length > data.remaining()) {
+        break;   // torn tail of a crashed write
+      }
+      ByteBuffer frame = data.slice();
+      frame.limit(length);
+      crc.reset();
+      crc.update(frame.duplicate());
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      data.position(data.position() + length);
+      apply(frame, target);
+      count++;
+    }
+    return count;
+  }
+
+  private static void apply(ByteBuffer frame, WorldChanges target) {
+    byte op = frame.get();
+    switch (op) {
+      case ENTITY_ADDED:
+        target.entityAdded(readString(frame), readString(frame), readString(frame), frame.getInt());
+        break;
+      case ENTITY_REMOVED:
+        target.entityRemoved(readString(frame), readString(frame), frame.getInt());
+        break;
+      case EXIT_ADDED:
+        target.exitAdded(readString(frame), readString(frame));
+        break;
+      case PLAYER_MOVED:
+        target.playerMoved(readString(frame), readString(frame));
+        break;
+      case PLAYER_REMOVED:
+        target.playerRemoved(readString(frame));
+        break;
+      case INVENTORY_ADDED:
+        target.inventoryAdded(readString(frame), readString(frame), frame.getInt());
+        break;
+      case INVENTORY_REMOVED:
+        target.inventoryRemoved(readString(frame), readString(frame), frame.getInt());
+        break;
+      case HEALTH_CHANGED:
+        target.healthChanged(readString(frame), frame.getInt());
+        break;
+      default:
+        throw new IllegalStateException("Unknown journal record " + op);
+    }
+  }
+
+  private static String readString(ByteBuffer frame) {
+    byte[] utf = new byte[frame.getShort() & 0xffff];
+    frame.get(utf);
+    return new String(utf, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * a growable buffer of framed changes: [length][crc32][op][fields], strings as [u16 length][utf-8]
+   */
+  public static class Records implements WorldChanges {
+
+    private byte[] bytes = new byte[4096];
+    private int size;
+    private int frameStart;
+    private final CRC32 crc = new CRC32();
+
+    public int size() {
+      return size;
+    }
+
+    public void clear() {
+      size = 0;
+    }
+
+    /**
+     * the framed changes, backed by this buffer until it is cleared
+     * @return
+     */
+    public ByteBuffer buffer() {
+      return ByteBuffer.wrap(bytes, 0, size);
+    }
+
+    private void begin(byte op) {
+      ensure(9);
+      frameStart = size;
+      size += 8;   // room for length and crc
+      bytes[size++] = op;
+    }
+
+    private void end() {
+      int length = size - frameStart - 8;
+      crc.reset();
+      crc.update(bytes, frameStart + 8, length);
+      ByteBuffer.wrap(bytes, frameStart, 8).putInt(length).putInt((int) crc.getValue());
+    }
+
+    private void ensure(int more) {
+      if (size + more > bytes.length) {
+        byte[] grown = new byte[Math.max(bytes.length * 2, size + more)];
+        System.arraycopy(bytes, 0, grown, 0, size);
+        bytes = grown;
+      }
+    }
+
+    private void putInt(int value) {
+      ensure(4);
+      ByteBuffer.wrap(bytes, size, 4).putInt(value);
+      size += 4;
+    }
+
+    private void putString(String value) {
+      byte[] utf = value.getBytes(StandardCharsets.UTF_8);
+      ensure(2 + utf.length);
+      bytes[size++] = (byte) (utf.length >>> 8);
+      bytes[size++] = (byte) utf.length;
+      System.arraycopy(utf, 0, bytes, size, utf.length);
+      size += utf.length;
+    }
+
+    public void entityAdded(String location, String type, String entity, int count) {
+      begin(ENTITY_ADDED);
+      putString(location);
+      putString(type);
+      putString(entity);
+      putInt(count);
+      end();
+    }
+
+    public void entityRemoved(String location, String entity, int count) {
+      begin(ENTITY_REMOVED);
+      putString(location);
+      putString(entity);
+      putInt(count);
+      end();
+    }
+
+    public void exitAdded(String from, String to) {
+      begin(EXIT_ADDED);
+      putString(from);
+      putString(to);
+      end();
+    }
+
+    public void playerMoved(String player, String location) {
+      begin(PLAYER_MOVED);
+      putString(player);
+      putString(location);
+      end();
+    }
+
+    public void playerRemoved(String player) {
+      begin(PLAYER_REMOVED);
+      putString(player);
+      end();
+    }
+
+    public void inventoryAdded(String player, String item, int count) {
+      begin(INVENTORY_ADDED);
+      putString(player);
+      putString(item);
+      putInt(count);
+      end();
+    }
+
+    public void inventoryRemoved(String player, String item, int count) {
+      begin(INVENTORY_REMOVED);
+      putString(player);
+      putString(item);
+      putInt(count);
+      end();
+    }
+
+    public void healthChanged(String player, int health) {
+      begin(HEALTH_CHANGED);
+      putString(player);
+      putInt(health);
+      end();
+    }
+
+  }
+
+}
@@ -0,0 +1,329 @@
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * load generator, many simulated players walk the map over session connections and
+ * issue a mix of look, get, drop, goto and action commands, latency is recorded per
+ * command type with HdrHistogram (HdrHistogram.jar on the classpath)
+ *
+ * java StagLoad [action-file]
+ *   -Dstag.load.host=127.0.0.1 -Dstag.load.port=8888
+ *   -Dstag.load.players=1000     simulated players, one connection each
+ *   -Dstag.load.seconds=60       length of the measured run, after -Dstag.load.warmup=10 seconds
+ *   -Dstag.load.mode=closed      closed: next command once the last one is answered, after -Dstag.load.think=0 ms
+ *                                open: -Dstag.load.rate=<commands per second> over all players, latency
+ *                                counts from when a command was due, so a slow server can't hide queueing
+ *
+ * triggers and subjects for actions come from the action file, without it only built-in commands are sent.
+ * Thousands of sessions need the NIO engine or a worker pool as large as the player count.
+ */
+public class StagLoad
+{
+    private static final String[] TYPES = { "look", "goto", "get", "drop", "action", "inv" };
+    private static final int[] MIX = { 30, 30, 15, 10, 10, 5 };   // percent of commands of each type
+
+    public static void main(String args[])
+    {
+        List<String[]> actions = args.length > 0 ? readActions(args[0]) : new ArrayList<>();
+        new StagLoad(actions).run();
+    }
+
+    /**
+     * trigger followed by subjects of every action in the action file
+     */
+    private static List<String[]> readActions(String actionFilename)
+    {
+        List<String[]> actions = new ArrayList<>();
+        try (Reader reader = new FileReader(actionFilename)) {
+            JSONObject root = (JSONObject) new JSONParser().parse(reader);
+            for (Object object : (JSONArray) root.get("actions")) {
+                JSONObject action = (JSONObject) object;
+                JSONArray subjects = (JSONArray) action.get("subjects");
+                for (Object trigger : (JSONArray) action.get("triggers")) {
+                    String[] command = new String[subjects.size() + 1];
+                    command[0] = (String) trigger;
+                    for (int i = 0; i < subjects.size(); i++) command[i + 1] = (String) subjects.get(i);
+                    actions.add(command);
+                }
+            }
+        } catch(IOException | ParseException e) {
+            System.out.println(e);
+        }
+        return actions;
+    }
+
+
+    private final String host = System.getProperty("stag.load.host", "127.0.0.1");
+    private final int port = Integer.getInteger("stag.load.port", 8888);
+    private final int players = Integer.getInteger("stag.load.players", 1000);
+    private final int seconds = Integer.getInteger("stag.load.seconds", 60);
+    private final int warmup = Integer.getInteger("stag.load.warmup", 10);
+    private final boolean open = "open".equals(System.getProperty("stag.load.mode", "closed"));
+    private final double rate = Double.parseDouble(System.getProperty("stag.load.rate", "1000"));
+    private final long thinkNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("stag.load.think", 0));
+
+    private final List<String[]> actions;
+    private final Recorder[] recorders = new Recorder[TYPES.length];   // latency in microseconds per command type
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean measuring;
+    private volatile boolean stopping;
+
+    private StagLoad(List<String[]> actions)
+    {
+        this.actions = actions;
+        for (int i = 0; i < recorders.length; i++) recorders[i] = new Recorder(3);
+    }
+
+    private void run()
+    {
+        System.out.println((open ? "Open loop at " + rate + " commands/s" : "Closed loop") + ", " + players + " players, "
+                + warmup + " s warmup, " + seconds + " s measured");
+        CountDownLatch done = new CountDownLatch(players);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);   // common time base for open loop schedules
+        for (int i = 0; i < players; i++) {
+            Walker player = new Walker("load" + i, start, i);
+            Thread thread = new Thread(() -> {
+                player.run();
+                done.countDown();
+            }, "stag-load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        sleepSeconds(warmup);
+        for (Recorder recorder : recorders) recorder.reset();
+        measuring = true;
+        long measureStart = System.nanoTime();
+        Histogram[] totals = new Histogram[TYPES.length];
+        for (int i = 0; i < totals.length; i++) totals[i] = new Histogram(3);
+        for (int elapsed = 0; elapsed < seconds; elapsed += 5) {   // progress every 5 seconds
+            sleepSeconds(Math.min(5, seconds - elapsed));
+            long interval = 0;
+            for (int i = 0; i < recorders.length; i++) {
+                Histogram histogram = recorders[i].getIntervalHistogram();
+                interval += histogram.getTotalCount();
+                totals[i].add(histogram);
+            }
+            System.out.println(String.format("%4d s  %10.1f commands/s  %d errors", Math.min(elapsed + 5, seconds),
+                    interval / (double) Math.min(5, seconds - elapsed), errors.sum()));
+        }
+        double measured = (System.nanoTime() - measureStart) / 1e9;
+        measuring = false;
+        stopping = true;
+        report(totals, measured);
+        try {
+            done.await(5, TimeUnit.SECONDS);
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void report(Histogram[] totals, double measured)
+    {
+        System.out.println(String.format("%-8s %10s %12s %10s %10s %10s %10s %10s", "command", "count", "per second",
+                "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"));
+        Histogram all = new Histogram(3);
+        for (int i = 0; i < TYPES.length; i++) {
+            all.add(totals[i]);
+            print(TYPES[i], totals[i], measured);
+        }
+        print("all", all, measured);
+        System.out.println("errors " + errors.sum());
+    }
+
+    private void print(String type, Histogram histogram, double measured)
+    {
+        if (histogram.getTotalCount() == 0) return;
+        System.out.println(String.format("%-8s %10d %12.1f %10d %10d %10d %10d %10d", type, histogram.getTotalCount(),
+                histogram.getTotalCount() / measured, histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue()));
+    }
+
+    private static void sleepSeconds(int seconds)
+    {
+        try {
+            Thread.sleep(seconds * 1000L);
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * one simulated player on its own session connection, it remembers what the last
+     * look or goto showed and picks its next command from that
+     */
+    private class Walker
+    {
+        private final String name;
+        private final long interval;     // open loop nanoseconds between this player's commands
+        private long due;                // open loop time the next command is due
+        private final List<String> exits = new ArrayList<>();
+        private final List<String> artefacts = new ArrayList<>();
+        private final List<String> inventory = new ArrayList<>();
+        private final StringBuilder response = new StringBuilder();
+
+        private Socket socket;
+        private BufferedReader in;
+        private BufferedWriter out;
+
+        Walker(String name, long start, int number)
+        {
+            this.name = name;
+            this.interval = (long) (1e9 * players / rate);
+            this.due = start + interval * number / players;   // spread players over the first interval
+        }
+
+        void run()
+        {
+            while(!stopping) {
+                try {
+                    if (socket == null) connect();
+                    next();
+                } catch(IOException ioe) {
+                    errors.increment();
+                    close();
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+            }
+            close();
+        }
+
+        private void connect() throws IOException
+        {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            out.write(StagServer.SESSION + "\n");
+            send("look");   // learn the start location
+        }
+
+        private void next() throws IOException
+        {
+            int type = pickType();
+            String command = command(type);
+            long sent;
+            if (open) {
+                long now = System.nanoTime();
+                if (due > now) LockSupport.parkNanos(due - now);
+                sent = due;   // latency counts from when the command was due
+                due += interval;
+            } else {
+                sent = System.nanoTime();
+            }
+            send(command);
+            long micros = (System.nanoTime() - sent) / 1000;
+            if (measuring) recorders[type].recordValue(Math.max(0, micros));
+            learn(command);
+            if (!open && thinkNanos > 0) LockSupport.parkNanos(thinkNanos);
+        }
+
+        private int pickType()
+        {
+            int roll = ThreadLocalRandom.current().nextInt(100);
+            for (int i = 0; i < MIX.length; i++) {
+                roll -= MIX[i];
+                if (roll < 0) return i;
+            }
+            return 0;
+        }
+
+        private String command(int type)
+        {
+            switch(TYPES[type]) {
+                case "goto":
+                    return exits.isEmpty() ? "look" : "goto " + any(exits);
+                case "get":
+                    return artefacts.isEmpty() ? "look" : "get " + any(artefacts);
+                case "drop":
+                    return inventory.isEmpty() ? "inv" : "drop " + any(inventory);
+                case "action":
+                    return actions.isEmpty() ? "look" : String.join(" ", actions.get(ThreadLocalRandom.current().nextInt(actions.size())));
+                default:
+                    return TYPES[type];
+            }
+        }
+
+        private String any(List<String> names)
+        {
+            return names.get(ThreadLocalRandom.current().nextInt(names.size()));
+        }
+
+        private void send(String command) throws IOException
+        {
+            out.write(name + ": " + command + "\n");
+            out.flush();
+            response.setLength(0);
+            String incoming;
+            while((incoming = in.readLine()) != null) {
+                if (incoming.equals(StagServer.END_OF_RESPONSE)) return;
+                response.append(incoming).append('\n');
+            }
+            throw new EOFException("Server closed the connection");
+        }
+
+        /**
+         * update what the player knows from the response it just got
+         */
+        private void learn(String command)
+        {
+            String text = response.toString();
+            if (text.contains("You are in ")) parseLocation(text);
+            else if (command.startsWith("get ") && text.contains("You pick up")) {
+                String item = command.substring(4);
+                artefacts.remove(item);
+                inventory.add(item);
+            }
+            else if (command.startsWith("drop ") && text.contains("You drop")) {
+                String item = command.substring(5);
+                inventory.remove(item);
+                artefacts.add(item);
+            }
+            else if (text.contains("You lose your life")) {
+                inventory.clear();
+                exits.clear();
+                artefacts.clear();
+            }
+        }
+
+        /**
+         * read artefacts and exits out of a location description
+         */
+        private void parseLocation(String text)
+        {
+            exits.clear();
+            artefacts.clear();
+            List<String> section = null;
+            for (String line : text.split("\n")) {
+                if (line.startsWith("\t")) {
+                    if (section != null) section.add(line.strip());
+                }
+                else if (line.startsWith("You can goto")) section = exits;
+                else if (line.equals("artefacts:")) section = artefacts;
+                else section = null;
+            }
+        }
+
+        private void close()
+        {
+            try {
+                if (socket != null) socket.close();
+            } catch(IOException ioe) {
+                System.err.println(ioe);
+            }
+            socket = null;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * this is a StagMetrics class, the process-wide instrumentation of the server:
+ * per-command counters and latency histograms, connection counters, gauges registered
+ * by other classes (world size, game loop) and JVM allocation and GC figures.
+ *
+ * recording only touches LongAdders and atomic array slots, nothing locks. Metrics are read
+ * through JMX (stag:type=Metrics) and, with -Dstag.metrics.port=<port>, as plain text
+ * from http://127.0.0.1:<port>/metrics, one "name{labels} value" per line.
+ */
+public class StagMetrics {
+
+  static final String[] COMMANDS = { "inv", "get", "drop", "goto", "look", "health", "action" };
+  static final int ACTION = COMMANDS.length - 1;
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  private static final StagMetrics GLOBAL = new StagMetrics();
+
+  private final LongAdder[] commands = new LongAdder[COMMANDS.length];
+  private final LongAdder[] failures = new LongAdder[COMMANDS.length];
+  private final Histogram[] latencies = new Histogram[COMMANDS.length];
+
+  private final LongAdder connectionsOpened = new LongAdder();
+  private final LongAdder connectionsClosed = new LongAdder();
+  private final LongAdder connectionsRejected = new LongAdder();
+
+  private final Map<String, List<LongSupplier>> gauges = new LinkedHashMap<>();  // name -> sources summed, guarded by itself
+
+  private StagMetrics() {
+    for (int i = 0; i < COMMANDS.length; i++) {
+      commands[i] = new LongAdder();
+      failures[i] = new LongAdder();
+      latencies[i] = new Histogram();
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("stag:type=Metrics"));
+    } catch (JMException e) {
+      System.out.println(e);
+    }
+    Integer port = Integer.getInteger("stag.metrics.port");
+    if (port != null) {
+      startEndpoint(port);
+    }
+  }
+
+  /**
+   * the metrics of this process
+   * @return
+   */
+  public static StagMetrics global() {
+    return GLOBAL;
+  }
+
+  /**
+   * count one command and its latency
+   * @param type index into COMMANDS
+   * @param nanos time it took
+   * @param failed it threw instead of answering
+   */
+  public void recordCommand(int type, long nanos, boolean failed) {
+    commands[type].increment();
+    if (failed) {
+      failures[type].increment();
+    }
+    latencies[type].record(nanos);
+  }
+
+  public void connectionOpened() {
+    connectionsOpened.increment();
+  }
+
+  public void connectionClosed() {
+    connectionsClosed.increment();
+  }
+
+  public void connectionRejected() {
+    connectionsRejected.increment();
+  }
+
+  /**
+   * add a source to a gauge, sources registered under the same name are summed
+   * (several world partitions in one process each add their players)
+   * @param name metric name
+   * @param source read when metrics are collected
+   * @return the registration, its owner closes it when it goes away so the gauge lets go of the source
+   */
+  public Gauge gauge(String name, LongSupplier source) {
+    synchronized (gauges) {
+      gauges.computeIfAbsent(name, key -> new ArrayList<>()).add(source);
+    }
+    return new Gauge(name, source);
+  }
+
+  /**
+   * close every registration of a list and empty it
+   * @param registrations
+   */
+  static void close(List<Gauge> registrations) {
+    for (Gauge gauge: registrations) {
+      gauge.close();
+    }
+    registrations.clear();
+  }
+
+  /**
+   * read every metric
+   * @return metric name with labels -> value, in a stable order
+   */
+  public Map<String, Number> collect() {
+    Map<String, Number> values = new LinkedHashMap<>();
+    for (int i = 0; i < COMMANDS.length; i++) {
+      String label = "{command=\"" + COMMANDS[i] + "\"}";
+      values.put("stag_commands_total" + label, commands[i].sum());
+      values.put("stag_command_failures_total" + label, failures[i].sum());
+      values.put("stag_command_seconds_sum" + label, latencies[i].sum() / 1e9);
+      for (double quantile: QUANTILES) {
+        values.put("stag_command_seconds{command=\"" + COMMANDS[i] + "\",quantile=\"" + quantile + "\"}",
+            latencies[i].quantile(quantile) / 1e9);
+      }
+    }
+    long opened = connectionsOpened.sum();
+    values.put("stag_connections_total", opened);
+    values.put("stag_connections_open", opened - connectionsClosed.sum());
+    values.put("stag_connections_rejected_total", connectionsRejected.sum());
+
+    synchronized (gauges) {
+      for (Map.Entry<String, List<LongSupplier>> gauge: gauges.entrySet()) {
+        long sum = 0;
+        for (LongSupplier source: gauge.getValue()) {
+          sum += source.getAsLong();
+        }
+        values.put(gauge.getKey(), sum);
+      }
+    }
+
+    Runtime runtime = Runtime.getRuntime();
+    values.put("stag_heap_used_bytes", runtime.totalMemory() - runtime.freeMemory());
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+      if (allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+        long allocated = 0;
+        for (long bytes: allocation.getThreadAllocatedBytes(allocation.getAllThreadIds())) {
+          allocated += Math.max(0, bytes);   // live threads only, -1 for threads that just ended
+        }
+        values.put("stag_allocated_bytes", allocated);
+      }
+    }
+    for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+      String label = "{gc=\"" + gc.getName() + "\"}";
+      values.put("stag_gc_collections_total" + label, gc.getCollectionCount());
+      values.put("stag_gc_seconds_total" + label, gc.getCollectionTime() / 1e3);
+    }
+    return values;
+  }
+
+  /**
+   * all metrics as text, one "name value" per line
+   * @return
+   */
+  public String render() {
+    StringBuilder out = new StringBuilder(4096);
+    for (Map.Entry<String, Number> value: collect().entrySet()) {
+      out.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+    }
+    return out.toString();
+  }
+
+  private void startEndpoint(int port) {
+    try {
+      HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.createContext("/metrics", exchange -> {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      });
+      server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stag-metrics");
+        thread.setDaemon(true);
+        return thread;
+      }));
+      server.start();
+      System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+    } catch (IOException e) {
+      System.out.println(e);
+    }
+  }
+
+  /**
+   * a source registered with a gauge, a gauge left without sources is no longer collected
+   */
+  public class Gauge implements AutoCloseable {
+
+    private final String name;
+    private final LongSupplier source;
+
+    private Gauge(String name, LongSupplier source) {
+      this.name = name;
+      this.source = source;
+    }
+
+    /**
+     * remove the source, closing twice does nothing
+     */
+    public void close() {
+      synchronized (gauges) {
+        List<LongSupplier> sources = gauges.get(name);
+        if (sources != null && sources.removeIf(registered -> registered == source) && sources.isEmpty()) {
+          gauges.remove(name);
+        }
+      }
+    }
+
+  }
+
+  /**
+   * latency histogram with log-linear buckets, four per power of two (at most 25% wide),
+   * recorded with one atomic increment
+   */
+  static class Histogram {
+
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    void record(long value) {
+      buckets.incrementAndGet(bucket(Math.max(0, value)));
+      sum.add(value);
+    }
+
+    long sum() {
+      return sum.sum();
+    }
+
+    /**
+     * @param value
+     * @return bucket holding value
+     */
+    static int bucket(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket
+     * @return smallest value of a bucket
+     */
+    static long lowest(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+      return (1L << exponent) + ((long) (bucket % SUB_BUCKETS) << (exponent - SUB_BITS));
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return upper end of the bucket the quantile falls in, 0 when nothing was recorded
+     */
+    long quantile(double quantile) {
+      long[] counts = new long[buckets.length()];
+      long total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = buckets.get(i);
+        total += counts[i];
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(quantile * total);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && counts[i] > 0) {
+          return i + 1 < counts.length ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+
+  }
+
+  /**
+   * JMX view, every collected metric is a read-only attribute
+   */
+  private class Bean implements DynamicMBean {
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Number value = collect().get(attribute);
+      if (value == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return value;
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+      Map<String, Number> values = collect();
+      AttributeList list = new AttributeList();
+      for (String attribute: attributes) {
+        if (values.containsKey(attribute)) {
+          list.add(new Attribute(attribute, values.get(attribute)));
+        }
+      }
+      return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+      throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<>();
+      for (Map.Entry<String, Number> value: collect().entrySet()) {
+        attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(), value.getKey(),
+            true, false, false));
+      }
+      return new MBeanInfo(StagMetrics.class.getName(), "Stag server metrics",
+          attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+  }
+
+}
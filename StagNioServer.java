@@ -0,0 +1,717 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.*;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * non-blocking server engine, a few selector threads hold every connection
+ * and speak the same one-shot and session protocol as StagServer.
+ * With -Dstag.writer=single commands are handed to the game loop and the selector
+ * goes on serving other connections until the response comes back, and a response
+ * whose changes the journal has not written yet waits off the selector the same way.
+ * Event frames of a subscribed connection are only taken off its queue while
+ * nothing else waits to be written, so a slow client falls behind in its own queue
+ */
+class StagNioServer
+{
+    private static final int READ_BUFFER_SIZE = 64 * 1024;   // shared read buffer per selector thread
+    private static final int MAX_LINE_LENGTH = 8 * 1024;     // longest command line a client may send
+
+    private static final ByteBuffer HEADER = readOnly("server: \n");
+    private static final ByteBuffer TRAILER = readOnly("\n" + StagServer.END_OF_RESPONSE + "\n");
+
+    private StagHandler dispatcher;      // run commands against the game state
+    private StagAdmission admission;     // sheds commands of players over their rate, or when too many run
+    private SelectorLoop[] loops;        // selector threads serving connections
+    private int idleTimeout;             // milliseconds a connection may wait between commands
+
+    public StagNioServer(String entityFilename, String actionFilename, int portNumber)
+    {
+        this(new StagDispatcher(new StagState(entityFilename, actionFilename)), portNumber);
+    }
+
+    public StagNioServer(StagHandler handler, int portNumber)
+    {
+        dispatcher = handler;
+        admission = new StagAdmission();
+        idleTimeout = Integer.getInteger("stag.idle", 300000);
+        try {
+            loops = new SelectorLoop[Integer.getInteger("stag.selectors", 2)];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new SelectorLoop();
+                Thread thread = new Thread(loops[i], "stag-selector-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            ServerSocketChannel ssc = ServerSocketChannel.open();
+            ssc.bind(new InetSocketAddress(portNumber), 1024);  // create a socket listen on portNumber
+            System.out.println("Server Listening");
+            int next = 0;
+            while(true) {
+                SocketChannel channel = ssc.accept();   // block until a connection is received
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    loops[next].register(channel);   // spread connections round robin over selectors
+                    next = (next + 1) % loops.length;
+                } catch(IOException ioe) {
+                    System.err.println(ioe);
+                    channel.close();
+                }
+            }
+        } catch(IOException ioe) {
+            System.err.println(ioe);
+        }
+    }
+
+    private static ByteBuffer readOnly(String text)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * a response the game loop finished, waiting for its selector thread to write it
+     */
+    private static class Completion
+    {
+        final SelectionKey key;
+        final boolean batch;        // response is already framed
+        final String response;      // null if the command failed
+        final StagBinary.Reply reply;   // reply of a binary request, null for text
+        final ByteBuffer rendered;      // response rendered before its changes were durable, written as is
+        final Throwable error;
+
+        Completion(SelectionKey key, boolean batch, String response, StagBinary.Reply reply, ByteBuffer rendered, Throwable error)
+        {
+            this.key = key;
+            this.batch = batch;
+            this.response = response;
+            this.reply = reply;
+            this.rendered = rendered;
+            this.error = error;
+        }
+    }
+
+    /**
+     * state kept per connection, only holds bytes while a line or a write is incomplete
+     */
+    private static class Connection
+    {
+        byte[] partial = new byte[0];   // bytes of a command line not yet terminated
+        int partialLength;
+        boolean started;                // first line seen
+        boolean session;                // long-lived session or legacy one-shot
+        StagBinary.Session binary;      // set once a binary client's HELLO was accepted
+        boolean binaryStarted;          // first byte was StagBinary.MAGIC
+        ByteBuffer request;             // view of partial a binary frame is read through
+        boolean closeAfterWrite;        // one-shot connection, close when response is out
+        long lastActive;                // last time the client sent something
+        List<String> batch;             // lines of a "#batch N" still being received, null outside a batch
+        int batchSize;
+        Queue<ByteBuffer> pending = new ArrayDeque<>();   // response bytes the socket could not take yet
+        StagEvents.Subscriber subscriber;                 // event frames to push, null unless subscribed
+        String player;                                    // who the session plays, the only player it may subscribe to
+        CompletableFuture<?> queued;                      // last answer waiting for the game loop or the journal, later answers go after it
+        int waiting;                                      // answers handed off the selector and not written yet
+
+        void append(ByteBuffer buffer, int from, int to)
+        {
+            int length = to - from;
+            if (partialLength + length > partial.length) {
+                byte[] grown = new byte[Math.max(partial.length * 2, partialLength + length)];
+                System.arraycopy(partial, 0, grown, 0, partialLength);
+                partial = grown;
+            }
+            for (int i = from; i < to; i++) partial[partialLength++] = buffer.get(i);
+        }
+    }
+
+    /**
+     * one selector thread, reads lines, dispatches them and writes the responses back
+     */
+    private class SelectorLoop implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();   // accepted, not yet registered
+        private final Queue<Completion> completed = new ConcurrentLinkedQueue<>();    // game loop responses, in completion order
+        private final Queue<SelectionKey> pushes = new ConcurrentLinkedQueue<>();      // connections with event frames queued
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private long lastSweep;
+
+        // response rendering, reused for every command this selector serves
+        private final StringBuilder text = new StringBuilder(1024);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private ByteBuffer body = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer header = HEADER.duplicate();
+        private final ByteBuffer trailer = TRAILER.duplicate();
+        private final ByteBuffer[] sessionResponse = { header, body, trailer };
+        private final ByteBuffer[] oneShotResponse = { header, body };
+        private final ByteBuffer[] batchResponse = { body };   // batch responses carry their own framing
+        private final StagBinary.Reply reply = new StagBinary.Reply();   // binary replies, reused like text
+        private final ByteBuffer[] frameResponse = new ByteBuffer[1];
+
+        SelectorLoop() throws IOException
+        {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel)
+        {
+            incoming.add(channel);
+            selector.wakeup();
+        }
+
+        public void run()
+        {
+            while(true) {
+                try {
+                    selector.select(1000);
+                    registerIncoming();
+                    writeCompleted();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (key.isValid() && key.isReadable()) read(key);
+                            if (key.isValid() && key.isWritable()) write(key);
+                        } catch(IOException | RuntimeException e) {
+                            System.err.println(e);
+                            close(key);
+                        }
+                    }
+                    writePushes();
+                    sweepIdle();
+                } catch(IOException ioe) {
+                    System.err.println(ioe);
+                }
+            }
+        }
+
+        private void registerIncoming() throws IOException
+        {
+            SocketChannel channel;
+            while((channel = incoming.poll()) != null) {
+                Connection connection = new Connection();
+                connection.lastActive = System.currentTimeMillis();
+                channel.register(selector, SelectionKey.OP_READ, connection);
+                StagMetrics.global().connectionOpened();
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException
+        {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {   // client closed its side
+                close(key);
+                return;
+            }
+            connection.lastActive = System.currentTimeMillis();
+            readBuffer.flip();
+            int start = 0;
+            if (!connection.started && connection.partialLength == 0 && readBuffer.limit() > 0
+                    && (readBuffer.get(0) & 0xff) == StagBinary.MAGIC) {   // first byte of the connection, not just of this read
+                connection.started = true;   // binary client, see StagBinary
+                connection.session = true;
+                connection.binaryStarted = true;
+                start = 1;
+            }
+            if (connection.binaryStarted) {
+                readFrames(key, connection, start);
+                return;
+            }
+            for (int i = 0; i < readBuffer.limit(); i++) {   // scan for complete lines
+                if (readBuffer.get(i) != '\n') continue;
+                connection.append(readBuffer, start, i);
+                start = i + 1;
+                if (isCommandLine(connection)) {   // the common case, parsed where it was read
+                    if (!handleCommandBytes(key, connection)) return;
+                    continue;
+                }
+                String line = takeLine(connection);
+                if (!handleLine(key, connection, line)) return;
+            }
+            connection.append(readBuffer, start, readBuffer.limit());  // keep the unterminated tail
+            if (connection.partialLength > MAX_LINE_LENGTH) {
+                System.err.println("Command line too long, closing connection");
+                close(key);
+            }
+        }
+
+        /**
+         * collect length-prefixed binary frames and handle every complete one
+         */
+        private void readFrames(SelectionKey key, Connection connection, int from) throws IOException
+        {
+            connection.append(readBuffer, from, readBuffer.limit());
+            byte[] bytes = connection.partial;
+            int start = 0;
+            while(connection.partialLength - start >= 4) {
+                int length = (bytes[start] & 0xff) << 24 | (bytes[start + 1] & 0xff) << 16
+                        | (bytes[start + 2] & 0xff) << 8 | (bytes[start + 3] & 0xff);
+                if (length <= 0 || length > StagBinary.MAX_FRAME) {
+                    System.err.println("Bad binary frame length, closing connection: " + length);
+                    close(key);
+                    return;
+                }
+                if (connection.partialLength - start - 4 < length) break;   // rest of the frame is still coming
+                if (connection.request == null || connection.request.array() != bytes) {
+                    connection.request = ByteBuffer.wrap(bytes);   // partial grew
+                }
+                connection.request.limit(start + 4 + length).position(start + 4);
+                start += 4 + length;
+                if (!handleFrame(key, connection, connection.request)) return;
+            }
+            System.arraycopy(bytes, start, bytes, 0, connection.partialLength - start);   // keep the incomplete tail
+            connection.partialLength -= start;
+        }
+
+        /**
+         * handle one binary frame
+         * @return false once the connection stops reading
+         */
+        private boolean handleFrame(SelectionKey key, Connection connection, ByteBuffer request) throws IOException
+        {
+            if (connection.binary == null) {
+                connection.binary = dispatcher.hello(request, reply);
+                if (connection.binary == null) {
+                    connection.closeAfterWrite = true;   // refused, close once the error is out
+                    frameResponse[0] = reply.finish();
+                    send(key, connection, frameResponse);
+                    return false;
+                }
+                frameResponse[0] = reply.finish();
+                return send(key, connection, frameResponse);
+            }
+            if (!admission.admitPlayer(connection.binary.username)) {
+                return shed(key, connection, false, null, new StagBinary.Reply().begin(null, 0, StagBinary.BUSY).putName(StagAdmission.BUSY));
+            }
+            StagGameLoop gameLoop = dispatcher.getGameLoop();
+            if (gameLoop != null) {   // the frame and reply belong to the game thread until it is done
+                ByteBuffer copy = ByteBuffer.allocate(request.remaining()).put(request).flip();
+                StagBinary.Reply own = new StagBinary.Reply();
+                connection.waiting++;
+                connection.queued = gameLoop.submitBinary(connection.binary, copy, own).whenComplete((response, error) -> {
+                    admission.release();
+                    complete(key, false, null, own, error);
+                });
+                return true;
+            }
+            CompletableFuture<Void> durable;
+            try {
+                durable = dispatcher.startBinary(connection.binary, request, reply);
+            } finally {
+                admission.release();
+            }
+            frameResponse[0] = reply.finish();
+            return sendWhenDurable(key, connection, durable, frameResponse);
+        }
+
+        /**
+         * the line read is a plain command that needs no String: not a marker line, not blank,
+         * not part of a batch, and no game loop to queue it to
+         */
+        private boolean isCommandLine(Connection connection)
+        {
+            return connection.batch == null && dispatcher.getGameLoop() == null
+                    && connection.partialLength > 0 && connection.partial[0] > ' ' && connection.partial[0] != '#';
+        }
+
+        /**
+         * handle a complete command line in the connection's buffer, without making a String of it
+         * @return false once the connection stops reading
+         */
+        private boolean handleCommandBytes(SelectionKey key, Connection connection) throws IOException
+        {
+            connection.started = true;
+            int length = connection.partialLength;
+            if (connection.partial[length - 1] == '\r') length--;
+            if (connection.player == null) connection.player = StagEvents.playerOf(connection.partial, 0, length);
+            text.setLength(0);
+            CompletableFuture<Void> durable = StagJournal.DURABLE;
+            if (admission.admit(connection.partial, 0, length)) {
+                try {
+                    durable = dispatcher.startCommand(connection.partial, 0, length, text);
+                } finally {
+                    admission.release();
+                }
+            }
+            else text.append(StagAdmission.BUSY);
+            connection.partialLength = 0;
+            if (connection.partial.length > MAX_LINE_LENGTH) connection.partial = new byte[0];  // drop oversized buffers
+            encodeBody();
+            header.rewind();
+            trailer.rewind();
+            return sendWhenDurable(key, connection, durable, connection.session ? sessionResponse : oneShotResponse);
+        }
+
+        private String takeLine(Connection connection)
+        {
+            int length = connection.partialLength;
+            if (length > 0 && connection.partial[length - 1] == '\r') length--;
+            String line = new String(connection.partial, 0, length, StandardCharsets.UTF_8);
+            connection.partialLength = 0;
+            if (connection.partial.length > MAX_LINE_LENGTH) connection.partial = new byte[0];  // drop oversized buffers
+            return line;
+        }
+
+        /**
+         * handle one complete line
+         * @return false once the connection stops reading
+         */
+        private boolean handleLine(SelectionKey key, Connection connection, String line) throws IOException
+        {
+            if (!connection.started) {
+                connection.started = true;
+                if (StagServer.SESSION.equals(line)) {
+                    connection.session = true;
+                    return true;
+                }
+            }
+            if (connection.session && line.isBlank()) return true;   // ignore keep-alive blank lines
+            if (connection.batch != null) {
+                if (connection.player == null) connection.player = StagEvents.playerOf(line);
+                connection.batch.add(line);
+                if (connection.batch.size() < connection.batchSize) return true;
+                text.setLength(0);
+                if (!admission.admit(connection.batch)) {
+                    StagAdmission.busyBatch(connection.batch.size(), text);
+                    connection.batch = null;
+                    return shed(key, connection, true, text.toString(), null);
+                }
+                StagGameLoop gameLoop = dispatcher.getGameLoop();
+                if (gameLoop != null) {
+                    connection.waiting++;
+                    connection.queued = gameLoop.submitBatch(connection.batch).whenComplete((response, error) -> {
+                        admission.release();
+                        complete(key, true, response, null, error);
+                    });
+                    connection.batch = null;
+                    return true;
+                }
+                CompletableFuture<Void> durable;
+                try {
+                    durable = dispatcher.startBatch(connection.batch, text);
+                } finally {
+                    admission.release();
+                }
+                connection.batch = null;
+                encodeBody();
+                return sendWhenDurable(key, connection, durable, batchResponse);
+            }
+            if (connection.session && line.startsWith(StagServer.BATCH)) {
+                connection.batchSize = StagServer.batchSize(line);
+                if (connection.batchSize < 0) {
+                    System.err.println("Bad batch header, closing connection: " + line);
+                    close(key);
+                    return false;
+                }
+                connection.batch = new ArrayList<>(connection.batchSize);
+                return true;
+            }
+
+            if (connection.session && line.startsWith(StagEvents.SUBSCRIBE)) {
+                String target = line.substring(StagEvents.SUBSCRIBE.length()).strip();
+                boolean own = target.equals(connection.player);
+                if (own) {
+                    if (connection.subscriber != null) connection.subscriber.cancel();   // one per connection, the new one replaces it
+                    connection.subscriber = dispatcher.subscribe(target, () -> ready(key));
+                }
+                text.setLength(0);
+                text.append(!own ? StagEvents.NOT_OWN : connection.subscriber == null ? "Events are not available here"
+                        : "Subscribed to " + connection.subscriber.getPlayer());
+                encodeBody();
+                header.rewind();
+                trailer.rewind();
+                return sendWhenDurable(key, connection, StagJournal.DURABLE, sessionResponse);
+            }
+
+            if (connection.player == null) connection.player = StagEvents.playerOf(line);
+            if (!admission.admit(line)) {
+                return shed(key, connection, false, StagAdmission.BUSY, null);
+            }
+            StagGameLoop gameLoop = dispatcher.getGameLoop();
+            if (gameLoop != null) {
+                connection.waiting++;
+                connection.queued = gameLoop.submit(line).whenComplete((response, error) -> {
+                    admission.release();
+                    complete(key, false, response, null, error);
+                });
+                if (connection.session) return true;
+                key.interestOps(0);   // legacy client sends one command only
+                return false;
+            }
+
+            text.setLength(0);
+            CompletableFuture<Void> durable;
+            try {
+                durable = dispatcher.startCommand(line, text);
+            } finally {
+                admission.release();
+            }
+            encodeBody();
+            header.rewind();
+            trailer.rewind();
+            return sendWhenDurable(key, connection, durable, connection.session ? sessionResponse : oneShotResponse);
+        }
+
+        /**
+         * send a rendered response once the changes behind it are journaled and every earlier answer of
+         * the connection is out. Mostly both hold already; otherwise a copy waits and the selector goes on
+         * @param durable from the dispatcher's start methods
+         * @param response rendered response
+         * @return false once the connection stops reading
+         */
+        private boolean sendWhenDurable(SelectionKey key, Connection connection, CompletableFuture<Void> durable, ByteBuffer[] response) throws IOException
+        {
+            if (durable.isDone() && !durable.isCompletedExceptionally() && connection.waiting == 0) {
+                return send(key, connection, response);
+            }
+            ByteBuffer rendered = copyRemaining(response);
+            CompletableFuture<?> after = connection.waiting == 0 ? durable : CompletableFuture.allOf(connection.queued, durable);
+            connection.waiting++;
+            connection.queued = after.whenComplete((ignored, error) -> complete(key, rendered, error));
+            if (connection.session) return true;
+            key.interestOps(0);   // legacy client sends one command only
+            return false;
+        }
+
+        /**
+         * answer a request admission shed, behind whatever the connection still waits for from the
+         * game loop or the journal so answers keep the order of the requests
+         * @param batch response holds framed batch responses
+         * @param response response text, null for a binary reply
+         * @param busy binary reply, null for a text response
+         * @return false once the connection stops reading
+         */
+        private boolean shed(SelectionKey key, Connection connection, boolean batch, String response, StagBinary.Reply busy) throws IOException
+        {
+            if (connection.waiting > 0) {
+                connection.waiting++;
+                connection.queued = connection.queued.whenComplete((ignored, error) -> complete(key, batch, response, busy, null));
+                return true;
+            }
+            if (busy != null) {
+                frameResponse[0] = busy.finish();
+                return send(key, connection, frameResponse);
+            }
+            text.setLength(0);
+            text.append(response);
+            encodeBody();
+            if (batch) return send(key, connection, batchResponse);
+            header.rewind();
+            trailer.rewind();
+            return send(key, connection, connection.session ? sessionResponse : oneShotResponse);
+        }
+
+        /**
+         * write a rendered response, whatever the socket can't take now is queued
+         * @return false once the connection stops reading
+         */
+        private boolean send(SelectionKey key, Connection connection, ByteBuffer[] response) throws IOException
+        {
+            if (connection.pending.isEmpty()) {
+                ((SocketChannel) key.channel()).write(response);   // gathering write of header, body and trailer
+            }
+            if (hasRemaining(response)) {   // socket full, keep a private copy of what is left
+                connection.pending.add(copyRemaining(response));
+            }
+            if (!connection.session) {
+                connection.closeAfterWrite = true;
+                key.interestOps(0);   // legacy client sends one command only
+            }
+            write(key);
+            return connection.session;
+        }
+
+        /**
+         * called on the game thread when a response is ready, hands it to this selector
+         */
+        private void complete(SelectionKey key, boolean batch, String response, StagBinary.Reply reply, Throwable error)
+        {
+            completed.add(new Completion(key, batch, response, reply, null, error));
+            selector.wakeup();
+        }
+
+        /**
+         * called on the journal's thread when the changes behind a rendered response are durable
+         */
+        private void complete(SelectionKey key, ByteBuffer rendered, Throwable error)
+        {
+            completed.add(new Completion(key, false, null, null, rendered, error));
+            selector.wakeup();
+        }
+
+        private void writeCompleted()
+        {
+            Completion completion;
+            while((completion = completed.poll()) != null) {
+                SelectionKey key = completion.key;
+                if (!key.isValid()) continue;   // client went away meanwhile
+                Connection connection = (Connection) key.attachment();
+                connection.waiting--;
+                if (completion.error != null) {
+                    System.err.println(completion.error);
+                    close(key);
+                    continue;
+                }
+                try {
+                    if (completion.rendered != null) {
+                        frameResponse[0] = completion.rendered;
+                        send(key, connection, frameResponse);
+                        continue;
+                    }
+                    if (completion.reply != null) {
+                        frameResponse[0] = completion.reply.finish();
+                        send(key, connection, frameResponse);
+                        continue;
+                    }
+                    text.setLength(0);
+                    text.append(completion.response);
+                    encodeBody();
+                    if (completion.batch) {
+                        send(key, connection, batchResponse);
+                    } else {
+                        header.rewind();
+                        trailer.rewind();
+                        send(key, connection, connection.session ? sessionResponse : oneShotResponse);
+                    }
+                } catch(IOException ioe) {
+                    System.err.println(ioe);
+                    close(key);
+                }
+            }
+        }
+
+        /**
+         * called on the event thread when a frame is queued for a connection of this selector
+         */
+        private void ready(SelectionKey key)
+        {
+            pushes.add(key);
+            selector.wakeup();
+        }
+
+        private void writePushes()
+        {
+            SelectionKey key;
+            while((key = pushes.poll()) != null) {
+                if (!key.isValid()) continue;
+                Connection connection = (Connection) key.attachment();
+                try {
+                    String frame;
+                    while(connection.subscriber != null && connection.pending.isEmpty()
+                            && (frame = connection.subscriber.poll()) != null) {
+                        text.setLength(0);
+                        text.append(frame);
+                        encodeBody();
+                        send(key, connection, batchResponse);   // frames carry their own framing
+                    }
+                } catch(IOException ioe) {
+                    System.err.println(ioe);
+                    close(key);
+                }
+            }
+        }
+
+        /**
+         * encode the rendered text into the reusable body buffer, growing it if a response is bigger
+         */
+        private void encodeBody()
+        {
+            encoder.reset();
+            body.clear();
+            CharBuffer chars = CharBuffer.wrap(text);
+            while(encoder.encode(chars, body, true).isOverflow()) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(body.capacity() * 2);
+                body.flip();
+                bigger.put(body);
+                body = bigger;
+                sessionResponse[1] = body;
+                oneShotResponse[1] = body;
+                batchResponse[0] = body;
+            }
+            encoder.flush(body);
+            body.flip();
+        }
+
+        private ByteBuffer copyRemaining(ByteBuffer[] buffers)
+        {
+            int size = 0;
+            for (ByteBuffer buffer : buffers) size += buffer.remaining();
+            ByteBuffer copy = ByteBuffer.allocate(size);
+            for (ByteBuffer buffer : buffers) copy.put(buffer);
+            copy.flip();
+            return copy;
+        }
+
+        private void write(SelectionKey key) throws IOException
+        {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+            ByteBuffer buffer;
+            while((buffer = connection.pending.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {   // socket full, stop reading until the client takes its responses
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.pending.poll();
+            }
+            if (connection.subscriber != null) pushes.add(key);   // frames held back while the socket was full
+            if (connection.closeAfterWrite) {
+                close(key);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private boolean hasRemaining(ByteBuffer[] buffers)
+        {
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) return true;
+            }
+            return false;
+        }
+
+        private void sweepIdle()
+        {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < 1000) return;
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && now - connection.lastActive > idleTimeout) close(key);
+            }
+        }
+
+        private void close(SelectionKey key)
+        {
+            Connection connection = (Connection) key.attachment();
+            if (connection != null && connection.subscriber != null) connection.subscriber.cancel();
+            if (key.channel().isOpen()) StagMetrics.global().connectionClosed();
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch(IOException ioe) {
+                System.err.println(ioe);
+            }
+        }
+    }
+}
@@ -0,0 +1,422 @@
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * this is a StagParser class, it reads a "username: command" line where it lies and resolves its
+ * words to Symbols ids through a perfect hash table built once from the built-in commands, the action
+ * triggers and the names of the world, the sealed names. Player names are not in it, their ids come and go. A word is found by hashing its bytes in place and comparing
+ * them to the one key its slot can hold, so a line made of known words from a player the thread
+ * has seen before is parsed without allocating anything.
+ *
+ * the table is built with hash and displace: keys are spread over buckets by a first hash, then,
+ * biggest bucket first, each bucket looks for a seed of the second hash that sends all its keys to
+ * free slots. A lookup is two hashes and one compare.
+ */
+class StagParser {
+
+  // verbs, in the order of StagMetrics.COMMANDS
+  static final int INVENTORY = 0;
+  static final int GET = 1;
+  static final int DROP = 2;
+  static final int GOTO = 3;
+  static final int LOOK = 4;
+  static final int HEALTH = 5;
+  static final int ACTION = StagMetrics.ACTION;   // any other first word, a trigger or not
+
+  static final String MALFORMED = "Malformed command, expected \"username: command\"";
+
+  private static final String[] BUILT_IN = {"inventory", "inv", "get", "drop", "goto", "look", "health"};
+  private static final int[] BUILT_IN_VERBS = {INVENTORY, INVENTORY, GET, DROP, GOTO, LOOK, HEALTH};
+
+  private final Symbols symbols;
+  private final byte[][] keys;   // slot -> utf-8 name, null for a free slot
+  private final int[] ids;       // slot -> symbol id
+  private final byte[] verbs;    // slot -> verb the word is as a first word
+  private final int[] seeds;     // bucket -> seed of the second hash for its keys
+  private final int slotMask;
+  private final int bucketMask;
+
+  /**
+   * intern the built-in commands, before the symbols are sealed
+   * @param symbols
+   */
+  static void internCommands(Symbols symbols) {
+    for (String command: BUILT_IN) {
+      symbols.intern(command);
+    }
+  }
+
+  /**
+   * build the table from the sealed names
+   * @param symbols names of the world, the action triggers and the built-in commands, sealed
+   */
+  StagParser(Symbols symbols) {
+    this.symbols = symbols;
+    int size = symbols.sealed();
+    byte[][] names = new byte[size][];
+    for (int id = 0; id < size; id++) {
+      names[id] = symbols.name(id).getBytes(StandardCharsets.UTF_8);
+    }
+    int buckets = Integer.highestOneBit(Math.max(1, size / 2) * 2 - 1);   // about two keys a bucket
+    int slots = Integer.highestOneBit(size * 2 + 1) * 2;   // at most half full
+    int[] placed;
+    do {   // a bucket found no seed, retry with more room
+      placed = place(names, buckets, slots);
+      if (placed == null) {
+        slots *= 2;
+      }
+    } while (placed == null);
+    bucketMask = buckets - 1;
+    slotMask = slots - 1;
+    seeds = Arrays.copyOf(placed, buckets);
+    keys = new byte[slots][];
+    ids = new int[slots];
+    verbs = new byte[slots];
+    Arrays.fill(verbs, (byte) ACTION);
+    for (int id = 0; id < size; id++) {
+      int slot = slot(names[id], 0, names[id].length);
+      keys[slot] = names[id];
+      ids[slot] = id;
+    }
+    for (int i = 0; i < BUILT_IN.length; i++) {
+      byte[] name = names[symbols.id(BUILT_IN[i])];
+      verbs[slot(name, 0, name.length)] = (byte) BUILT_IN_VERBS[i];
+    }
+  }
+
+  /**
+   * find a seed for each bucket, biggest bucket first
+   * @return the seeds, or null if some bucket found none
+   */
+  private static int[] place(byte[][] names, int buckets, int slots) {
+    List<List<Integer>> members = new ArrayList<>();
+    for (int i = 0; i < buckets; i++) {
+      members.add(new ArrayList<>());
+    }
+    for (int id = 0; id < names.length; id++) {
+      members.get(hash(names[id], 0, names[id].length, 0) & buckets - 1).add(id);
+    }
+    Integer[] order = new Integer[buckets];
+    for (int i = 0; i < buckets; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> members.get(b).size() - members.get(a).size());
+    int[] seeds = new int[buckets];
+    boolean[] taken = new boolean[slots];
+    int[] tried = new int[0];
+    for (int bucket: order) {
+      List<Integer> keys = members.get(bucket);
+      if (keys.isEmpty()) {
+        break;   // the rest are empty too
+      }
+      if (tried.length < keys.size()) {
+        tried = new int[keys.size()];
+      }
+      seeds[bucket] = -1;
+      for (int seed = 1; seed < 1 << 16 && seeds[bucket] < 0; seed++) {
+        int found = 0;
+        for (int id: keys) {
+          int slot = hash(names[id], 0, names[id].length, seed) & slots - 1;
+          if (taken[slot] || contains(tried, found, slot)) {
+            break;
+          }
+          tried[found++] = slot;
+        }
+        if (found == keys.size()) {
+          for (int i = 0; i < found; i++) {
+            taken[tried[i]] = true;
+          }
+          seeds[bucket] = seed;
+        }
+      }
+      if (seeds[bucket] < 0) {
+        return null;
+      }
+    }
+    return seeds;
+  }
+
+  private static boolean contains(int[] values, int length, int value) {
+    for (int i = 0; i < length; i++) {
+      if (values[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int hash(byte[] bytes, int from, int to, int seed) {
+    int h = 0x811C9DC5 ^ seed * 0x9E3779B9;
+    for (int i = from; i < to; i++) {
+      h = (h ^ bytes[i]) * 0x01000193;
+    }
+    return h ^ h >>> 15;
+  }
+
+  private int slot(byte[] bytes, int from, int to) {
+    return hash(bytes, from, to, seeds[hash(bytes, from, to, 0) & bucketMask]) & slotMask;
+  }
+
+  /**
+   * the slot of a word if it is in the table
+   * @return the slot, or -1
+   */
+  private int lookup(byte[] bytes, int from, int to) {
+    int slot = slot(bytes, from, to);
+    byte[] key = keys[slot];
+    if (key == null || !Arrays.equals(key, 0, key.length, bytes, from, to)) {
+      return -1;
+    }
+    return slot;
+  }
+
+  /**
+   * parse a line that came as a String, its chars are copied into the command's buffer first
+   * @param line "username: command"
+   * @param command filled in, reused from line to line
+   * @return false if the line has no ':'
+   */
+  boolean parse(String line, Command command) {
+    int length = line.length();
+    byte[] bytes = command.buffer;
+    if (bytes.length < length) {
+      bytes = command.buffer = new byte[Math.max(length, bytes.length * 2)];
+    }
+    for (int i = 0; i < length; i++) {
+      char c = line.charAt(i);
+      if (c >= 0x80) {   // not ascii, let the charset encode it
+        bytes = line.getBytes(StandardCharsets.UTF_8);
+        return parse(bytes, 0, bytes.length, command);
+      }
+      bytes[i] = (byte) c;
+    }
+    return parse(bytes, 0, length, command);
+  }
+
+  /**
+   * parse a line in place, the command keeps pointing into bytes until the next parse
+   * @param bytes
+   * @param from first byte of the line
+   * @param to end of the line, no line break
+   * @param command filled in, reused from line to line
+   * @return false if the line has no ':'
+   */
+  boolean parse(byte[] bytes, int from, int to, Command command) {
+    int colon = indexOf(bytes, from, to, (byte) ':');
+    if (colon < 0) {
+      return false;
+    }
+    command.reset(bytes);
+    command.user(bytes, from, colon);
+    int end = indexOf(bytes, colon + 1, to, (byte) ':');   // anything after a second ':' is not part of the command
+    if (end < 0) {
+      end = to;
+    }
+    int i = colon + 1;
+    while (true) {
+      while (i < end && isSpace(bytes[i])) {
+        i++;
+      }
+      if (i == end) {
+        break;
+      }
+      int start = i;
+      while (i < end && !isSpace(bytes[i])) {
+        i++;
+      }
+      int slot = lookup(bytes, start, i);
+      if (command.count == 0 && slot >= 0) {
+        command.verb = verbs[slot];
+      }
+      command.add(slot < 0 ? -1 : ids[slot], start, i);
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] bytes, int from, int to, byte value) {
+    for (int i = from; i < to; i++) {
+      if (bytes[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r';
+  }
+
+  /**
+   * a parsed line: its player and its words, the first word being the verb.
+   * One is kept per thread and filled again for every line
+   */
+  class Command {
+
+    private byte[] buffer = new byte[256];   // a String line's bytes
+    private byte[] source;                   // bytes the words point into
+    private byte[] userBytes = new byte[0];  // the last player's name, its String is kept while it repeats
+    private String username;
+    private int verb;
+    private int count;                       // words
+    private int[] wordIds = new int[8];      // word -> symbol id, -1 for a word not in the table
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private final Subjects subjects = new Subjects();
+
+    private void reset(byte[] source) {
+      this.source = source;
+      verb = ACTION;
+      count = 0;
+    }
+
+    private void user(byte[] bytes, int from, int to) {
+      if (username == null || !Arrays.equals(userBytes, 0, userBytes.length, bytes, from, to)) {
+        userBytes = Arrays.copyOfRange(bytes, from, to);
+        username = new String(userBytes, StandardCharsets.UTF_8);
+      }
+    }
+
+    private void add(int id, int start, int end) {
+      if (count == wordIds.length) {
+        wordIds = Arrays.copyOf(wordIds, count * 2);
+        starts = Arrays.copyOf(starts, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      wordIds[count] = id;
+      starts[count] = start;
+      ends[count] = end;
+      count++;
+    }
+
+    /**
+     * start a command from ids, as a binary request sends them, the player is left as it was
+     * @param verb
+     */
+    void reset(int verb) {
+      reset(null);
+      this.verb = verb;
+    }
+
+    /**
+     * add a word by its id
+     * @param id an id handed out by the symbols
+     */
+    void add(int id) {
+      add(id, 0, 0);
+    }
+
+    String getUsername() {
+      return username;
+    }
+
+    /**
+     * @return INVENTORY to HEALTH for a built-in command, ACTION otherwise
+     */
+    int getVerb() {
+      return verb;
+    }
+
+    /**
+     * @return number of words, the verb included
+     */
+    int size() {
+      return count;
+    }
+
+    /**
+     * symbol ids of the words
+     * @return an array valid up to size(), -1 for a word not in the table
+     */
+    int[] ids() {
+      return wordIds;
+    }
+
+    /**
+     * name of a word, the interned one when the word is known
+     * @param i
+     * @return
+     */
+    String word(int i) {
+      return wordIds[i] >= 0 ? symbols.name(wordIds[i]) : new String(source, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * the words after the verb, as a set
+     * @return a view, valid until the next parse
+     */
+    Subjects subjects() {
+      return subjects;
+    }
+
+    /**
+     * the words after the verb without repeats, a view over the command for Action.checkSubjects
+     */
+    class Subjects extends AbstractSet<String> {
+
+      public int size() {
+        int distinct = 0;
+        for (int i = 1; i < count; i++) {
+          if (first(i)) {
+            distinct++;
+          }
+        }
+        return distinct;
+      }
+
+      public boolean contains(Object o) {
+        for (int i = 1; i < count; i++) {
+          if (word(i).equals(o)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      /**
+       * a word that did not appear earlier in the command
+       */
+      private boolean first(int i) {
+        for (int j = 1; j < i; j++) {
+          if (wordIds[i] >= 0 ? wordIds[j] == wordIds[i] : wordIds[j] < 0 && Arrays.equals(source, starts[i], ends[i], source, starts[j], ends[j])) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      public Iterator<String> iterator() {
+        return new Iterator<String>() {
+          private int next = advance(1);
+
+          private int advance(int i) {
+            while (i < count && !first(i)) {
+              i++;
+            }
+            return i;
+          }
+
+          public boolean hasNext() {
+            return next < count;
+          }
+
+          public String next() {
+            if (next >= count) {
+              throw new NoSuchElementException();
+            }
+            String word = word(next);
+            next = advance(next + 1);
+            return word;
+          }
+        };
+      }
+
+    }
+
+  }
+
+}
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * this is a StagPlayerStore class, where evicted players wait on disk until their next command.
+ * A player is one file named after the hex of its name's utf-8 bytes, holding one line
+ * "<location> <health> <item>=<count>,... <player>" as a handoff line has it, "-" for no items.
+ *
+ * the names stored are indexed in memory, listed from the directory when the store opens, so asking
+ * about a player that was never evicted, as every new player's first command does, touches no file.
+ */
+public class StagPlayerStore {
+
+  static final int MAX_NAME = 100;   // longest name in bytes a file can be named after
+
+  private final Path directory;
+  private final ConcurrentHashMap<String, Boolean> stored = new ConcurrentHashMap<>();  // names with a current file, per-name compute orders writes against discards
+  private Thread cleanup;   // deletes a temporary store when the process exits, null for a kept one
+
+  /**
+   * @param directory created if missing
+   * @throws IOException
+   */
+  public StagPlayerStore(Path directory) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    try (Stream<Path> files = Files.list(directory)) {
+      files.map(file -> file.getFileName().toString()).filter(file -> file.endsWith(".player"))
+          .forEach(file -> stored.put(new String(HexFormat.of().parseHex(file, 0, file.length() - ".player".length()),
+              StandardCharsets.UTF_8), Boolean.TRUE));
+    }
+  }
+
+  /**
+   * a store in a new temporary directory, deleted by close or when the process exits,
+   * for evicting without -Dstag.data
+   * @return
+   * @throws IOException
+   */
+  public static StagPlayerStore temporary() throws IOException {
+    StagPlayerStore store = new StagPlayerStore(Files.createTempDirectory("stag-players"));
+    store.cleanup = new Thread(store::deleteAll, "stag-players-cleanup");
+    Runtime.getRuntime().addShutdownHook(store.cleanup);
+    return store;
+  }
+
+  /**
+   * check a player can be stored, its name has to fit a file name
+   * @param name player name
+   * @return
+   */
+  public boolean canHold(String name) {
+    return name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME;
+  }
+
+  /**
+   * store a player, the file is forced to disk and moved into place whole
+   * @param name player name
+   * @param record its line
+   * @throws IOException
+   */
+  public void write(String name, String record) throws IOException {
+    try {
+      stored.compute(name, (key, present) -> {
+        try {
+          writeFile(name, record);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        return Boolean.TRUE;
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private void writeFile(String name, String record) throws IOException {
+    Path file = file(name);
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE)) {
+      ByteBuffer bytes = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      channel.force(false);
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * read a stored player
+   * @param name player name
+   * @return its line, or null if it is not stored
+   * @throws IOException
+   */
+  public String read(String name) throws IOException {
+    if (!stored.containsKey(name)) {
+      return null;
+    }
+    try {
+      return new String(Files.readAllBytes(file(name)), StandardCharsets.UTF_8);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  /**
+   * check a player is stored, without touching the disk
+   * @param name player name
+   * @return
+   */
+  public boolean contains(String name) {
+    return stored.containsKey(name);
+  }
+
+  /**
+   * a stored player is back in the world, it is no longer stored though its file stays
+   * until discard, in case the world forgets it again in a crash
+   * @param name player name
+   */
+  public void forget(String name) {
+    stored.remove(name);
+  }
+
+  /**
+   * delete the file of a forgotten player, unless the player was stored again meanwhile
+   * @param name player name
+   */
+  public void discard(String name) {
+    stored.computeIfAbsent(name, key -> {
+      try {
+        Files.deleteIfExists(file(name));
+      } catch (IOException e) {
+        System.out.println(e);
+      }
+      return null;   // still not stored
+    });
+  }
+
+  /**
+   * forget a stored player and delete its file
+   * @param name player name
+   * @throws IOException
+   */
+  public void delete(String name) throws IOException {
+    stored.remove(name);
+    if (canHold(name)) {
+      Files.deleteIfExists(file(name));
+    }
+  }
+
+  /**
+   * let go of the store, a temporary one is deleted with everything in it
+   */
+  public void close() {
+    if (cleanup == null) {
+      return;
+    }
+    try {
+      Runtime.getRuntime().removeShutdownHook(cleanup);
+    } catch (IllegalStateException e) {
+      return;   // shutting down, the hook deletes it
+    }
+    cleanup = null;
+    deleteAll();
+  }
+
+  private void deleteAll() {
+    stored.clear();
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file: (Iterable<Path>) files::iterator) {
+        Files.deleteIfExists(file);
+      }
+      Files.deleteIfExists(directory);
+    } catch (IOException e) {
+      System.out.println(e);
+    }
+  }
+
+  private Path file(String name) {
+    return directory.resolve(HexFormat.of().formatHex(name.getBytes(StandardCharsets.UTF_8)) + ".player");
+  }
+
+}
@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * front end of a sharded world, speaks the client protocol and sends each command
+ * to the shard that holds the player. New players go to shard 0, which owns the start.
+ * Shards answer "#redirect" when they don't hold the player and "#moved" when a
+ * goto handed the player to another shard, the router learns from both.
+ *
+ * java StagRouter <host:port>...                                 shards are StagServer processes
+ * java StagRouter -local <shards> <entity-file> <action-file>   shards are partitions in this process
+ *
+ * shard processes are started with -Dstag.port, -Dstag.shard and -Dstag.shards, see StagShards;
+ * the router is given their client ports, -Dstag.shards their peer ports. Control lines a client
+ * sends are answered here and never reach a shard
+ */
+class StagRouter implements StagHandler
+{
+    public static void main(String args[])
+    {
+        StagShards.Peer[] shards;
+        if(args.length == 4 && "-local".equals(args[0])) shards = startLocalShards(Integer.parseInt(args[1]), args[2], args[3]);
+        else if(args.length > 0 && !args[0].startsWith("-")) {
+            shards = new StagShards.Peer[args.length];
+            for (int i = 0; i < args.length; i++) shards[i] = new StagShards.RemotePeer(args[i]);
+        }
+        else {
+            System.out.println("Usage: java StagRouter <host:port>... | java StagRouter -local <shards> <entity-file> <action-file>");
+            return;
+        }
+        StagRouter router = new StagRouter(shards);
+        int port = Integer.getInteger("stag.port", 8888);
+        if("nio".equals(System.getProperty("stag.engine"))) new StagNioServer(router, port);
+        else new StagServer(router, port);
+    }
+
+    /**
+     * partition the world into shards living in this process
+     * @return the shards, linked to each other
+     */
+    private static StagShards.Peer[] startLocalShards(int count, String entityFilename, String actionFilename)
+    {
+        StagShards.Peer[] peers = new StagShards.Peer[count];     // what shards send handoffs to
+        StagShards.Peer[] clients = new StagShards.Peer[count];   // what the router sends commands to
+        for (int i = 0; i < count; i++) {
+            StagDispatcher dispatcher = new StagDispatcher(new StagState(entityFilename, actionFilename, new StagShards(i, peers)));
+            peers[i] = new StagShards.LocalPeer(dispatcher.getPeerHandler());
+            clients[i] = new StagShards.LocalPeer(dispatcher);
+        }
+        return clients;
+    }
+
+
+    private StagShards.Peer[] shards;    // every shard by number
+    private Map<String, Integer> routes = new ConcurrentHashMap<>();   // username -> shard last known to hold the player
+
+    public StagRouter(StagShards.Peer[] shards)
+    {
+        this.shards = shards;
+    }
+
+    public void handleCommand(String line, StringBuilder out)
+    {
+        if (StagShards.isControl(line)) {
+            out.append(StagDispatcher.NOT_A_PEER);
+            return;
+        }
+        String username = StagDispatcher.usernameOf(line);
+        int shard = routes.getOrDefault(username, 0);
+        for (int hops = 0; hops <= shards.length; hops++) {
+            String response;
+            try {
+                response = shards[shard].send(line);
+            } catch(IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            if (response.startsWith(StagShards.REDIRECT)) {   // not run, try the shard holding the player
+                shard = Integer.parseInt(response.substring(StagShards.REDIRECT.length()).strip());
+                routes.put(username, shard);
+                continue;
+            }
+            int last = response.lastIndexOf('\n') + 1;
+            if (response.startsWith(StagShards.MOVED, last)) {   // ran, and the player now lives elsewhere
+                routes.put(username, Integer.parseInt(response.substring(last + StagShards.MOVED.length()).strip()));
+                response = response.substring(0, Math.max(0, last - 1));
+            }
+            out.append(response);
+            return;
+        }
+        throw new IllegalStateException("Shards keep redirecting " + username);
+    }
+
+    public void handleBatch(List<String> lines, StringBuilder out)
+    {
+        for (String line : lines) {   // players of one batch may be on different shards, send them one by one
+            out.append("server: \n");
+            int mark = out.length();
+            try {
+                handleCommand(line, out);
+            } catch(RuntimeException e) {   // malformed or failing command, drop its partial response
+                System.err.println(e);
+                out.setLength(mark);
+            }
+            out.append('\n').append(StagServer.END_OF_RESPONSE).append('\n');
+        }
+    }
+}
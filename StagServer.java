@@ -1,82 +1,380 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 class StagServer
 {
+    static final String SESSION = "#session";       // first line of a long-lived session connection
+    static final String END_OF_RESPONSE = "#end";   // terminates each response inside a session
+    static final String BATCH = "#batch ";          // "#batch N" inside a session, the next N lines run as one batch
+    static final int MAX_BATCH = 1024;              // most commands a batch may hold, whatever the burst: admission charges a player at most a full bucket for them
+
+    /**
+     * parse the command count of a "#batch N" line
+     * @param line
+     * @return the count, or -1 if the line is not a valid batch header
+     */
+    static int batchSize(String line)
+    {
+        try {
+            int size = Integer.parseInt(line.substring(BATCH.length()).strip());
+            return size > 0 && size <= MAX_BATCH ? size : -1;
+        } catch(NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
     public static void main(String args[])
     {
-        if(args.length != 2) System.out.println("Usage: java StagServer <entity-file> <action-file>");
-        else new StagServer(args[0], args[1], 8888);
+        int port = Integer.getInteger("stag.port", 8888);
+        if(args.length != 2) {
+            System.out.println("Usage: java StagServer <entity-file> <action-file>");
+            return;
+        }
+        StagState state = new StagState(args[0], args[1]);
+        StagDispatcher dispatcher = new StagDispatcher(state);
+        if(state.getShards() != null) servePeers(dispatcher.getPeerHandler(), state.getShards().getPeerPort(), port);
+        if("nio".equals(System.getProperty("stag.engine"))) new StagNioServer(dispatcher, port);
+        else new StagServer(dispatcher, port);
     }
 
+    /**
+     * take handoffs from the other shards on this shard's peer port, see StagShards.
+     * Players draw no tokens there, the shards already admitted their commands
+     * @param peers peer handler of this shard
+     * @param peerPort
+     * @param clientPort port clients and the router use
+     */
+    private static void servePeers(StagHandler peers, int peerPort, int clientPort)
+    {
+        if(peerPort == clientPort) {
+            System.out.println("-Dstag.shards has to give this shard a peer port other than " + clientPort);
+            System.exit(1);
+        }
+        Thread thread = new Thread(() -> new StagServer(peers, new StagAdmission(0), peerPort), "stag-peers");
+        thread.start();
+    }
 
-    private StagState stagState;   // game state maintain the game
+
+    private StagHandler dispatcher;    // run commands against the game state
+    private StagAdmission admission;   // sheds commands of players over their rate, or when too many run
+    private ExecutorService workers;   // workers serve accepted connections
+    private int idleTimeout;           // milliseconds a connection may wait between commands
 
     public StagServer(String entityFilename, String actionFilename, int portNumber)
     {
-        stagState = new StagState(entityFilename, actionFilename);
+        this(new StagDispatcher(new StagState(entityFilename, actionFilename)), portNumber);
+    }
+
+    public StagServer(StagHandler handler, int portNumber)
+    {
+        this(handler, new StagAdmission(), portNumber);
+    }
+
+    public StagServer(StagHandler handler, StagAdmission admission, int portNumber)
+    {
+        dispatcher = handler;
+        this.admission = admission;
+        workers = createWorkers();
+        idleTimeout = Integer.getInteger("stag.idle", 300000);
         try {
             ServerSocket ss = new ServerSocket(portNumber);  // create a socket listen on portNumber
             System.out.println("Server Listening");
             while(true) acceptNextConnection(ss);
         } catch(IOException ioe) {
             System.err.println(ioe);
+        } finally {
+            workers.shutdown();
         }
     }
 
+    /**
+     * create the worker pool, size and backlog are set by
+     * -Dstag.workers=<threads> and -Dstag.queue=<pending connections>
+     * @return
+     */
+    private ExecutorService createWorkers()
+    {
+        int threads = Integer.getInteger("stag.workers", Runtime.getRuntime().availableProcessors() * 4);
+        int queue = Integer.getInteger("stag.queue", 1024);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), runnable -> {
+                    Thread thread = new Thread(runnable, "stag-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);   // idle workers exit, pool grows back on demand
+        return executor;
+    }
+
     private void acceptNextConnection(ServerSocket ss)
     {
         try {
             // Next line will block until a connection is received
             Socket socket = ss.accept();   // wait for next connection
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            try {
+                workers.execute(() -> serveConnection(socket));   // hand off, accept loop never does socket I/O
+            } catch(RejectedExecutionException ree) {
+                System.err.println("Too many pending connections, dropping " + socket.getRemoteSocketAddress());
+                StagMetrics.global().connectionRejected();
+                socket.close();   // pool and backlog are full
+            }
+        } catch(IOException ioe) {
+            System.err.println(ioe);
+        }
+    }
+
+    private void serveConnection(Socket socket)
+    {
+        StagMetrics.global().connectionOpened();
+        try {
+            socket.setSoTimeout(idleTimeout);   // idle connections are dropped instead of holding a worker
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            input.mark(1);
+            if (input.read() == StagBinary.MAGIC) {   // binary client, see StagBinary
+                processBinary(new DataInputStream(input), socket.getOutputStream());
+                return;
+            }
+            input.reset();
+            BufferedReader in = new BufferedReader(new InputStreamReader(input));
             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            processNextCommand(in, out);  // process connection
+            Response response = new Response();   // reused for every command on this connection
+            String line = in.readLine();
+            if (line == null) return;   // closed without a command, as a port probe does
+            if (SESSION.equals(line)) processSession(in, out, response);   // many commands on one connection
+            else processNextCommand(line, out, response);  // legacy client, one command per connection
             out.close();
             in.close();
-            socket.close();  // close connection
+        } catch(SocketTimeoutException ste) {
+            System.err.println("Closing idle connection " + socket.getRemoteSocketAddress());
         } catch(IOException ioe) {
             System.err.println(ioe);
+        } finally {
+            try {
+                socket.close();  // close connection
+            } catch(IOException ioe) {
+                System.err.println(ioe);
+            }
+            StagMetrics.global().connectionClosed();
         }
     }
 
-    private void processNextCommand(BufferedReader in, BufferedWriter out) throws IOException
-    {
-        String line = in.readLine();
-        String[] commands = line.split(":");  // split command from user by : to get username
-        String username = commands[0];
-        Player player = stagState.findPlayer(username);   // user username to find player
-        String cmd = commands[1];
-        String[] message = cmd.strip().split(" ");   // split command by space to get action and subjects
-        String response = "";
-        switch (message[0]) {
-            case "inventory":
-            case "inv":
-                response = player.showInventory();    // inv cmd
-                break;
-            case "get":     // get cmd
-                response = stagState.pickUp(player, message[1]);
-                break;
-            case "drop":    // drop cmd
-                response = stagState.drop(player, message[1]);
-                break;
-            case "goto":   // goto cmd
-                response = stagState.gotoPosition(player, message[1]);
-                break;
-            case "look":  // look cmd
-                response = stagState.look(player);
-                break;
-            case "health": // health cmd
-                response = "Your health is " + player.getHealth() + " now";
-                break;
-            default:   // other action cmd
-                response = stagState.processAction(player, message);
+    /**
+     * serve newline-framed commands until the client closes the connection,
+     * every response ends with an END_OF_RESPONSE line. A "#batch N" line runs the
+     * next N command lines together and writes all their responses at once.
+     * After "#subscribe <player>" a pusher thread writes event frames between responses, the player
+     * has to be the one the session's first command line played
+     * @param in
+     * @param out
+     * @param response
+     * @throws IOException
+     */
+    private void processSession(BufferedReader in, BufferedWriter out, Response response) throws IOException
+    {
+        StagEvents.Subscriber subscriber = null;
+        Thread pusher = null;
+        String player = null;   // who the session plays, the only player it may subscribe to
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                if (line.isBlank()) continue;   // ignore keep-alive blank lines
+                response.clear();
+                if (line.startsWith(BATCH)) {
+                    List<String> lines = processBatch(line, in, out, response);
+                    if (lines == null) return;
+                    if (player == null && !lines.isEmpty()) player = StagEvents.playerOf(lines.get(0));
+                    continue;
+                }
+                if (line.startsWith(StagEvents.SUBSCRIBE)) {
+                    String target = line.substring(StagEvents.SUBSCRIBE.length()).strip();
+                    boolean own = target.equals(player);
+                    if (own && subscriber != null) {   // one subscription per connection, the new one replaces it
+                        subscriber.cancel();
+                        pusher.interrupt();
+                        subscriber = null;
+                    }
+                    if (own) subscriber = dispatcher.subscribe(target, null);
+                    response.text.append("server: \n").append(!own ? StagEvents.NOT_OWN : subscriber == null ? "Events are not available here"
+                            : "Subscribed to " + subscriber.getPlayer());
+                    response.text.append('\n').append(END_OF_RESPONSE).append('\n');
+                    response.writeTo(out);
+                    if (own && subscriber != null) pusher = startPusher(subscriber, out);
+                    continue;
+                }
+                if (player == null) player = StagEvents.playerOf(line);
+                handleAdmitted(line, response.text.append("server: \n"));
+                response.text.append('\n').append(END_OF_RESPONSE).append('\n');
+                response.writeTo(out);
+            }
+        } finally {
+            if (subscriber != null) {
+                subscriber.cancel();
+                pusher.interrupt();
+            }
         }
+    }
+
+    /**
+     * write a subscriber's frames as they are queued, sharing the connection's writer with responses
+     * @return the pusher thread, interrupt it to stop
+     */
+    private Thread startPusher(StagEvents.Subscriber subscriber, Writer out)
+    {
+        Thread pusher = new Thread(() -> {
+            try {
+                while(true) {
+                    String frame = subscriber.take();
+                    synchronized(out) {
+                        out.write(frame);
+                        out.flush();
+                    }
+                }
+            } catch(InterruptedException ie) {
+                // unsubscribed
+            } catch(IOException ioe) {
+                subscriber.cancel();   // connection gone, its reader finds out too
+            }
+        }, "stag-pusher");
+        pusher.setDaemon(true);
+        pusher.start();
+        return pusher;
+    }
+
+    /**
+     * read the lines of a batch and answer them in one write
+     * @return the lines, null if the batch header or its lines were incomplete
+     * @throws IOException
+     */
+    private List<String> processBatch(String header, BufferedReader in, BufferedWriter out, Response response) throws IOException
+    {
+        int size = batchSize(header);
+        if (size < 0) {
+            System.err.println("Bad batch header, closing connection: " + header);
+            return null;
+        }
+        List<String> lines = new ArrayList<>(size);
+        String line;
+        while(lines.size() < size && (line = in.readLine()) != null) {
+            if (!line.isBlank()) lines.add(line);
+        }
+        if (lines.size() < size) return null;   // client went away mid-batch
+        if (admission.admit(lines)) {
+            try {
+                dispatcher.handleBatch(lines, response.text);
+            } finally {
+                admission.release();
+            }
+        }
+        else StagAdmission.busyBatch(lines.size(), response.text);
+        response.writeTo(out);
+        return lines;
+    }
+
+    /**
+     * serve length-prefixed binary frames until the client closes the connection,
+     * the first frame must be a HELLO. Frames are read into one buffer and replies
+     * written from one, nothing is allocated per request
+     * @param in
+     * @param out
+     * @throws IOException
+     */
+    private void processBinary(DataInputStream in, OutputStream out) throws IOException
+    {
+        byte[] frame = new byte[StagBinary.MAX_FRAME];
+        ByteBuffer request = ByteBuffer.wrap(frame);
+        StagBinary.Reply reply = new StagBinary.Reply();
+        StagBinary.Session session = null;
+        while(true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch(EOFException eof) {
+                return;   // client closed the connection
+            }
+            if (length <= 0 || length > frame.length) {
+                System.err.println("Bad binary frame length, closing connection: " + length);
+                return;
+            }
+            in.readFully(frame, 0, length);
+            request.clear().limit(length);
+            boolean refused = false;
+            if (session == null) {
+                session = dispatcher.hello(request, reply);
+                refused = session == null;
+            }
+            else if (admission.admitPlayer(session.username)) {
+                try {
+                    dispatcher.handleBinary(session, request, reply);
+                } finally {
+                    admission.release();
+                }
+            }
+            else reply.begin(null, 0, StagBinary.BUSY).putName(StagAdmission.BUSY);
+            ByteBuffer bytes = reply.finish();
+            out.write(bytes.array(), bytes.arrayOffset(), bytes.limit());
+            out.flush();
+            if (refused) return;
+        }
+    }
 
-        response = "server: \n" + response;
-        out.write(response);   // write response to out stream
-        out.flush();
+    private void processNextCommand(String line, BufferedWriter out, Response response) throws IOException
+    {
+        response.clear();
+        handleAdmitted(line, response.text.append("server: \n"));
+        response.writeTo(out);   // write response to out stream
+    }
+
+    /**
+     * run a command line if admission lets it in, otherwise answer that the server is busy
+     */
+    private void handleAdmitted(String line, StringBuilder out)
+    {
+        if (!admission.admit(line)) {
+            out.append(StagAdmission.BUSY);
+            return;
+        }
+        try {
+            dispatcher.handleCommand(line, out);
+        } finally {
+            admission.release();
+        }
+    }
+
+    /**
+     * response text of one connection, rendered in place and copied out in chunks
+     * so nothing is re-allocated per command
+     */
+    private static class Response
+    {
+        final StringBuilder text = new StringBuilder(1024);
+        private final char[] chunk = new char[8192];
+
+        void clear()
+        {
+            text.setLength(0);
+        }
+
+        void writeTo(Writer out) throws IOException
+        {
+            synchronized(out) {   // a pusher thread may write event frames on the same connection
+                for (int start = 0; start < text.length(); start += chunk.length) {
+                    int end = Math.min(text.length(), start + chunk.length);
+                    text.getChars(start, end, chunk, 0);
+                    out.write(chunk, 0, end - start);
+                }
+                out.flush();
+            }
+        }
     }
 
 
@@ -0,0 +1,227 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * this is a StagShards class, it splits the map into regions owned by different StagState partitions.
+ * Locations are cut into as many contiguous blocks of the entity file as there are shards, so the
+ * start location always belongs to shard 0. Every partition loads the whole map but only holds players
+ * in its own region, a move into another region hands the player over to the shard that owns it.
+ *
+ * shards talk to each other, and a StagRouter talks to them, with ordinary session command lines:
+ * "#handoff" and "#release" between shards, "#redirect" and "#moved" as the last line of a response.
+ * Shards send "#handoff" and "#release" to each other's peer port, the address -Dstag.shards lists,
+ * and that port accepts nothing else; the client port, which the router uses, refuses them.
+ */
+public class StagShards {
+
+  static final String HANDOFF = "#handoff ";    // "#handoff <location> <health> <item>=<count>,... <player>", player arrives
+  static final String RELEASE = "#release ";    // "#release <player>", player left the region it was handed to
+  static final String REDIRECT = "#redirect ";  // "#redirect <shard>", command not run, player is held elsewhere
+  static final String MOVED = "#moved ";        // "#moved <shard>", command ran and the player now lives on that shard
+  static final String REFUSED = "#refused ";    // "#refused <reason>", answer to a handoff the shard did not take
+
+  private final int self;        // this partition's shard number
+  private final Peer[] peers;    // every shard by number, including this one
+
+  /**
+   * something a command line can be sent to, answers with the response text
+   */
+  interface Peer {
+    String send(String line) throws IOException;
+  }
+
+  /**
+   * @param self this partition's shard number
+   * @param peers every shard by number, filled in by the caller before the first command
+   */
+  public StagShards(int self, Peer[] peers) {
+    this.self = self;
+    this.peers = peers;
+  }
+
+  /**
+   * shards of a multi-process world, -Dstag.shards=<host:port>,... lists the peer port of every shard
+   * in order and -Dstag.shard=<n> says which one this process is
+   * @return null when the world is not sharded
+   */
+  public static StagShards fromProperties() {
+    String addresses = System.getProperty("stag.shards");
+    if (addresses == null) {
+      return null;
+    }
+    String[] hosts = addresses.split(",");
+    Peer[] peers = new Peer[hosts.length];
+    for (int i = 0; i < hosts.length; i++) {
+      peers[i] = new RemotePeer(hosts[i].strip());
+    }
+    return new StagShards(Integer.getInteger("stag.shard", 0), peers);
+  }
+
+  public int getSelf() {
+    return self;
+  }
+
+  public int getCount() {
+    return peers.length;
+  }
+
+  /**
+   * port this shard takes handoffs from other shards on
+   * @return -1 when the shards live in one process
+   */
+  public int getPeerPort() {
+    return peers[self] instanceof RemotePeer ? ((RemotePeer) peers[self]).port : -1;
+  }
+
+  /**
+   * a line only shards may send each other
+   * @param line
+   * @return
+   */
+  static boolean isControl(String line) {
+    return line.startsWith(HANDOFF) || line.startsWith(RELEASE);
+  }
+
+  /**
+   * shard that owns a location
+   * @param world
+   * @param location
+   * @return
+   */
+  public int ownerOf(World world, Location location) {
+    if (location == world.getUnplaced()) {
+      return self;   // every partition keeps its own unplaced entities
+    }
+    return (int) ((long) location.getIndex() * peers.length / world.getLocations().size());
+  }
+
+  public boolean isLocal(World world, Location location) {
+    return ownerOf(world, location) == self;
+  }
+
+  /**
+   * send a command line to a shard
+   * @param shard shard number
+   * @param line
+   * @return response text
+   * @throws IOException
+   */
+  public String send(int shard, String line) throws IOException {
+    return peers[shard].send(line);
+  }
+
+  /**
+   * a shard in this process, seen through its client or its peer handler
+   */
+  static class LocalPeer implements Peer {
+
+    private final StagHandler handler;
+
+    LocalPeer(StagHandler handler) {
+      this.handler = handler;
+    }
+
+    public String send(String line) {
+      StringBuilder out = new StringBuilder();
+      handler.handleCommand(line, out);
+      return out.toString();
+    }
+
+  }
+
+  /**
+   * a shard server on another port or host, reached over pooled session connections
+   */
+  static class RemotePeer implements Peer {
+
+    private static final long MAX_IDLE = 60000;   // older pooled connections may have been dropped by the shard
+
+    private final String host;
+    private final int port;
+    private final Queue<Link> links = new ConcurrentLinkedQueue<>();
+
+    RemotePeer(String address) {
+      int colon = address.lastIndexOf(':');
+      host = address.substring(0, colon);
+      port = Integer.parseInt(address.substring(colon + 1));
+    }
+
+    public String send(String line) throws IOException {
+      Link link;
+      while ((link = links.poll()) != null && System.currentTimeMillis() - link.lastUsed > MAX_IDLE) {
+        link.close();
+      }
+      if (link == null) {
+        link = new Link(new Socket(host, port));
+      }
+      try {
+        String response = link.send(line);
+        links.add(link);
+        return response;
+      } catch (IOException e) {
+        link.close();
+        throw e;
+      }
+    }
+
+  }
+
+  /**
+   * one session connection to a shard
+   */
+  private static class Link {
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final BufferedWriter out;
+    private final StringBuilder response = new StringBuilder();
+    long lastUsed;
+
+    Link(Socket socket) throws IOException {
+      this.socket = socket;
+      socket.setTcpNoDelay(true);
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+      out.write(StagServer.SESSION + "\n");
+    }
+
+    /**
+     * send one line and read its response, the "server: " line and END_OF_RESPONSE are left out
+     */
+    String send(String line) throws IOException {
+      out.write(line);
+      out.write('\n');
+      out.flush();
+      if (in.readLine() == null) {
+        throw new EOFException("Shard closed the connection");
+      }
+      response.setLength(0);
+      String incoming;
+      boolean first = true;
+      while (!StagServer.END_OF_RESPONSE.equals(incoming = in.readLine())) {
+        if (incoming == null) {
+          throw new EOFException("Shard closed the connection");
+        }
+        if (!first) {
+          response.append('\n');
+        }
+        response.append(incoming);
+        first = false;
+      }
+      lastUsed = System.currentTimeMillis();
+      return response.toString();
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        System.err.println(e);
+      }
+    }
+
+  }
+
+}
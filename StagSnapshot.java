@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+/**
+ * this is a StagSnapshot class, a memory-mapped image of the whole game state.
+ * The state is stored as the journal changes that rebuild it from an empty world:
+ * [magic][generation][length][crc32][framed changes]
+ */
+public class StagSnapshot {
+
+  private static final long MAGIC = 0x53544147534e4150L;   // "STAGSNAP"
+  private static final int HEADER = 8 + 8 + 4 + 4;
+
+  private final long generation;   // first journal generation written after the snapshot
+  private final ByteBuffer changes;   // framed changes that rebuild the state
+
+  private StagSnapshot(long generation, ByteBuffer changes) {
+    this.generation = generation;
+    this.changes = changes;
+  }
+
+  public long getGeneration() {
+    return generation;
+  }
+
+  public ByteBuffer getChanges() {
+    return changes;
+  }
+
+  /**
+   * write a snapshot through a memory mapping and move it over the old one once it is forced to disk
+   * @param file snapshot file
+   * @param generation first journal generation written after the snapshot
+   * @param changes framed changes that rebuild the state
+   * @throws IOException
+   */
+  public static void write(Path file, long generation, ByteBuffer changes) throws IOException {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    CRC32 crc = new CRC32();
+    crc.update(changes.duplicate());
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + changes.remaining());
+      map.putLong(MAGIC).putLong(generation).putInt(changes.remaining()).putInt((int) crc.getValue());
+      map.put(changes.duplicate());
+      map.force();
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * map a snapshot file
+   * @param file snapshot file
+   * @return the snapshot, or null if there is none or it is damaged
+   * @throws IOException
+   */
+  public static StagSnapshot read(Path file) throws IOException {
+    if (!Files.exists(file)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER) {
+        return null;
+      }
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (map.getLong() != MAGIC) {
+        return null;
+      }
+      long generation = map.getLong();
+      int length = map.getInt();
+      int checksum = map.getInt();
+      if (length != map.remaining()) {
+        return null;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(map.duplicate());
+      if ((int) crc.getValue() != checksum) {
+        System.err.println("Snapshot " + file + " is damaged, ignoring it");
+        return null;
+      }
+      return new StagSnapshot(generation, map.slice());
+    }
+  }
+
+}
@@ -8,20 +8,82 @@ import org.json.simple.parser.JSONParser;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * this is a StagState class that maintain the state of the game
+ *
+ * locking: a command holds its player's lock (see playerLock) for its whole run,
+ * and takes the locks of the locations it touches. Locks are always taken in the order
+ * player -> locations (by index) -> unplaced location, so players in different
+ * locations never wait on each other.
+ *
+ * persistence: with -Dstag.data=<dir> every change is reported to a StagJournal while the
+ * locks that ordered it are held, and a snapshot is taken every -Dstag.snapshot.seconds.
+ * On start the last snapshot is loaded and only the journal written after it is replayed.
+ *
+ * events: changes also go to StagEvents, which pushes them to connections subscribed to a player's location.
+ *
+ * eviction: with -Dstag.evict.idle=<seconds> players idle that long are written to a StagPlayerStore
+ * and dropped from the world, their next command brings them back where they were. An evictor's clock
+ * hand visits a few players each tick, it never stops the world. The store lives under -Dstag.data,
+ * or in a temporary directory deleted again on exit. Off by default.
+ *
+ * symbols: the names of the world are sealed once it is loaded, a player's name is interned when it
+ * joins and released when it is evicted or handed to another shard.
+ *
+ * sharding: with StagShards this state is one partition of the world and only holds the players
+ * standing in its own region. A goto into another region hands the player over to the owning shard,
+ * and commands for players held elsewhere are answered with a redirect.
  */
 public class StagState {
 
-  private Graph locations;    // locations graph of the game
-  private Graph unplacedCharacter;  // unplaced characters in the game
-  private Graph unplacedFurniture;  // unplaced furniture in the game
-  private Graph unplacedArtefacts;  // unplaced artefacts in the game
-  private Graph path;          // path between the locations in the game
+  private World world = new World();   // indexed locations and entities of the game
   List<Action> actions;        // actions can be act by player
+  private Map<String, List<Action>> actionsByTrigger = new HashMap<>();  // trigger word -> actions with it, in file order
+  private final Map<Action, ActionMask> masks = new IdentityHashMap<>();  // action -> its compiled ids, filled while loading
+  private final int furnitureType = world.getSymbols().intern("furniture");
+  private final int charactersType = world.getSymbols().intern("characters");
+  private final Set<String> artefacts = new HashSet<>();   // names of every artefact of the map, what a player can carry
+  private final int healthId = world.getSymbols().intern("health");   // consumed and produced name of a player's health
   Map<String, Player> players; // multi-player maintain
+  private final Map<String, Inventory> inventories = new ConcurrentHashMap<>();  // player name -> item ids it carries
+
+  private final Map<String, ReentrantLock> playerLocks = new ConcurrentHashMap<>();  // username -> command lock
+
+  private final StagEvents events = new StagEvents();   // pushes location changes to subscribed connections
+  private WorldChanges changes = events;   // where changes are reported
+  private StagJournal journal;   // write-ahead journal, null when persistence is off
+  private Path dataDirectory;    // snapshot and journal directory
+
+  private StagShards shards;     // region owners, null when this state holds the whole world
+  private final Map<String, Integer> movedTo = new ConcurrentHashMap<>();  // player name -> shard it was handed to
+
+  private StagPlayerStore playerStore;   // evicted players, null when eviction is off
+  private ScheduledExecutorService evictor;   // runs the clock hand, null when eviction is off
+  private final Map<String, AtomicLong> lastActive = new ConcurrentHashMap<>();  // player name -> time of its last command
+  private final Queue<String> clock = new ConcurrentLinkedQueue<>();   // tracked players in the order the hand visits them
+  private long idleMillis;       // a player idle this long is evicted
+  private int evictBatch;        // players the hand visits each tick
+  private volatile Consumer<Runnable> evictionRunner = Runnable::run;   // runs an eviction step
+  private final LongAdder evicted = new LongAdder();
+  private final LongAdder rehydrated = new LongAdder();
+  private final List<StagMetrics.Gauge> gauges = new ArrayList<>();
 
 
   /**
@@ -30,41 +92,124 @@ public class StagState {
    * @param actionFileName
    */
   public StagState(String entityFileName, String actionFileName) {
+    this(entityFileName, actionFileName, StagShards.fromProperties());
+  }
 
+  /**
+   * constructor for one partition of a sharded world
+   * @param entityFileName
+   * @param actionFileName
+   * @param shards region owners, null for the whole world
+   */
+  public StagState(String entityFileName, String actionFileName, StagShards shards) {
+    this.shards = shards;
+    actions = new ArrayList<>();
+
+    String image = System.getProperty("stag.image");
+    if (image == null || !WorldImage.read(Paths.get(image), entityFileName, actionFileName, world, this)) {
+      if ("streaming".equals(System.getProperty("stag.loader"))) {   // build the world while reading
+        StagStreamLoader.loadEntities(entityFileName, world);
+        StagStreamLoader.loadActions(actionFileName, this);
+      } else {
+        loadEntities(entityFileName);   // no usable image, parse the text files
+        loadActions(actionFileName);
+      }
+    }
+    for (Location location: world.getLocations()) {   // before anyone picks something up
+      artefacts.addAll(location.getContents().getOrDefault("artefacts", Collections.emptyMap()).keySet());
+    }
+    StagParser.internCommands(world.getSymbols());   // a player named like a command is still parsed as one
+    world.getSymbols().seal();
+
+    players = new ConcurrentHashMap<>();   // initial multi-player
+
+    String data = System.getProperty("stag.data");
+    if (data != null) {
+      try {
+        Path directory = Paths.get(data);
+        startPersistence(shards == null ? directory : directory.resolve("shard-" + shards.getSelf()));
+      } catch (IOException e) {
+        System.out.println(e);
+      }
+    }
+
+    for (Player player: players.values()) {   // recovered players, so subscriptions find where they stand
+      events.playerMoved(player.getName(), positionOf(player).getName());
+    }
+
+    long idle = Long.getLong("stag.evict.idle", 0);
+    if (idle > 0) {
+      startEviction(idle * 1000);
+    }
+
+    StagMetrics metrics = StagMetrics.global();   // world size, read when metrics are scraped
+    gauges.add(metrics.gauge("stag_players", () -> players.size()));
+    gauges.add(metrics.gauge("stag_entities", world::countEntities));
+    gauges.add(metrics.gauge("stag_exits", world::countExits));
+    gauges.add(metrics.gauge("stag_players_evicted_total", evicted::sum));
+    gauges.add(metrics.gauge("stag_players_rehydrated_total", rehydrated::sum));
+  }
+
+  /**
+   * drop this state's gauges and its events' from the process metrics and stop evicting,
+   * a temporary player store is deleted. Called once nothing runs commands on it
+   */
+  public void close() {
+    StagMetrics.close(gauges);
+    events.close();
+    if (evictor != null) {
+      evictor.shutdownNow();
+      playerStore.close();
+    }
+  }
 
+  /**
+   * load locations, entities and paths from the entity file
+   * @param entityFileName
+   */
+  private void loadEntities(String entityFileName) {
     try {   // parse graph
       Parser parser = new Parser();
       FileReader reader = new FileReader(entityFileName);  // reader of file
       parser.parse(reader);  // initial parser with reader
       ArrayList<Graph> graphs = parser.getGraphs();
       ArrayList<Graph> subGraphs = graphs.get(0).getSubgraphs();
-      locations = subGraphs.get(0);    // get all locations
-      path = subGraphs.get(1);         // get path
-
-      for (Graph location: locations.getSubgraphs()) { // parse unplaced entity, unplaced entity is subgraph of locations
-        if (Objects.equals("unplaced", location.getNodes(false).get(0).getId().getId())) {  // find unplaced graph
-          for (Graph thing: location.getSubgraphs()) {  // iterator to visit different type unplaced entity
-            if (Objects.equals("characters", thing.getId().getId())) {
-              unplacedCharacter = thing;
-            }
-            else if (Objects.equals("artefacts", thing.getId().getId())) {
-              unplacedArtefacts = thing;
-            }
-            else {
-              unplacedFurniture = thing;
-            }
+      Graph locations = subGraphs.get(0);    // get all locations
+      Graph path = subGraphs.get(1);         // get path
+
+      for (Graph graph: locations.getSubgraphs()) { // index every location, unplaced entities live in the "unplaced" location
+        Node node = graph.getNodes(false).get(0);  // location node
+        Location location = world.addLocation(node.getId().getId(), node.getAttribute("description"), graph);
+        for (Graph thing: graph.getSubgraphs()) {  // iterator to visit different type entity
+          String type = thing.getId().getId();
+          location.addType(type);
+          for (Node entity: thing.getNodes(false)) {
+            world.addEntity(location, type, entity.getId().getId(), entity.getAttribute("description"));
           }
         }
       }
 
+      for (Edge e : path.getEdges()) {  // turn path edges into per-location exits
+        Location source = world.getLocation(e.getSource().getNode().getId().getId());
+        Location target = world.getLocation(e.getTarget().getNode().getId().getId());
+        if (source != null && target != null) {
+          source.addExit(target);
+        }
+      }
+
     } catch (FileNotFoundException | ParseException e) {
       System.out.println(e);
     }
+  }
 
+  /**
+   * load actions from the action file
+   * @param actionFileName
+   */
+  private void loadActions(String actionFileName) {
     try {  // parse actions
       JSONParser parser = new JSONParser();
       FileReader reader = new FileReader(actionFileName);  // reader file
-      actions = new ArrayList<>();
 
       JSONObject jsonObject = (JSONObject) parser.parse(reader);  // initial jsonObject with reader
       JSONArray jsonArray = (JSONArray) jsonObject.get("actions");  // get actions jsonArray
@@ -84,356 +229,967 @@ public class StagState {
         parseElement(behaviours, "consumed", consumed);
         parseElement(behaviours, "produced", produced);
         String narration = (String) behaviours.get("narration");  // parse narration
-        Action action = new Action(triggers, subjects, consumed, produced, narration); // create an action use elements
-        actions.add(action);
+        addAction(triggers, new Action(triggers, subjects, consumed, produced, narration)); // create an action use elements
       }
 
     } catch (IOException | org.json.simple.parser.ParseException e) {
       System.out.println(e);
     }
+  }
 
-    players = new HashMap<>();   // initial multi-player
+  /**
+   * add an action, compile it and index it under each of its trigger words
+   * @param triggers action's trigger words
+   * @param action
+   */
+  void addAction(Set<String> triggers, Action action) {
+    actions.add(action);
+    masks.put(action, new ActionMask(action, world.getSymbols()));
+    for (String trigger: triggers) {
+      world.getSymbols().intern(trigger);   // binary clients send triggers as ids
+      actionsByTrigger.computeIfAbsent(trigger, key -> new ArrayList<>()).add(action);
+    }
   }
 
   /**
-   * find player by name
-   * @param name
+   * trigger word -> actions with it, in file order
    * @return
    */
-  public Player findPlayer(String name) {
-    if (players.containsKey(name)) {  // player already join the game, return player
-      return players.get(name);
+  Map<String, List<Action>> getActionsByTrigger() {
+    return Collections.unmodifiableMap(actionsByTrigger);
+  }
+
+  World getWorld() {
+    return world;
+  }
+
+  /**
+   * where subscribed connections get location changes from
+   * @return
+   */
+  public StagEvents getEvents() {
+    return events;
+  }
+
+  /**
+   * recover the state saved in the data directory, then journal every change from now on
+   * @param directory data directory
+   * @throws IOException
+   */
+  private void startPersistence(Path directory) throws IOException {
+    dataDirectory = directory;
+    Files.createDirectories(directory);
+
+    long generation = 0;
+    StagSnapshot snapshot = StagSnapshot.read(directory.resolve("snapshot.bin"));
+    if (snapshot != null) {   // start from the snapshot, not from the files
+      clearWorld();
+      StagJournal.replay(snapshot.getChanges(), new Replay());
+      generation = snapshot.getGeneration();
     }
-    else {  // first join the game
-      Player player = new Player(name, locations.getSubgraphs().get(0)); // initial the player in the start player
-      players.put(name, player);   // add to multi-player maintain
-      addEntityToGraph(player.getPosition(), player); // add player to graph
-      return player;
+    long replayed = 0;
+    for (long journalGeneration: StagJournal.generations(directory)) {  // changes made after the snapshot
+      if (journalGeneration >= generation) {
+        byte[] bytes = Files.readAllBytes(StagJournal.file(directory, journalGeneration));
+        replayed += StagJournal.replay(ByteBuffer.wrap(bytes), new Replay());
+        generation = journalGeneration + 1;   // never append after a possibly torn tail
+      }
+    }
+    System.out.println("Recovered " + players.size() + " players, replayed " + replayed + " journal records");
+
+    journal = new StagJournal(directory, generation);
+    changes = WorldChanges.both(journal, events);
+    snapshot();   // recovery cost stays bounded by the snapshot interval
+
+    long interval = Long.getLong("stag.snapshot.seconds", 60);
+    ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "stag-snapshot");
+      thread.setDaemon(true);
+      return thread;
+    });
+    snapshots.scheduleWithFixedDelay(() -> {
+      try {
+        snapshot();
+      } catch (IOException e) {
+        System.out.println(e);
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * wait until the changes made by the calling thread are on disk, returns at once when persistence is off
+   * @throws java.io.UncheckedIOException if the journal could not write them
+   */
+  public void awaitDurable() {
+    if (journal != null) {
+      journal.awaitDurable();
+    }
+  }
+
+  /**
+   * the changes made by the calling thread so far, for callers that must not wait for them
+   * @return completed once they are on disk, at once when persistence is off, exceptionally if the journal failed
+   */
+  public CompletableFuture<Void> whenDurable() {
+    return journal != null ? journal.whenDurable() : StagJournal.DURABLE;
+  }
+
+  /**
+   * write a snapshot and drop the journal it makes redundant
+   * @throws IOException
+   */
+  public void snapshot() throws IOException {
+    StagJournal.Records state = new StagJournal.Records();
+    long generation;
+    List<Location> all = new ArrayList<>(world.getLocations());
+    if (!all.contains(world.getUnplaced())) {
+      all.add(world.getUnplaced());
+    }
+    all.sort(Comparator.comparingInt(Location::getIndex));
+    for (Location location: all) {   // every location lock in order, nothing changes while the state is copied
+      location.getLock().lock();
+    }
+    try {
+      generation = journal.rotate();
+      dump(all, state);
+    } finally {
+      for (Location location: all) {
+        location.getLock().unlock();
+      }
+    }
+    StagSnapshot.write(dataDirectory.resolve("snapshot.bin"), generation, state.buffer());
+    for (long old: StagJournal.generations(dataDirectory)) {
+      if (old < generation) {
+        Files.deleteIfExists(StagJournal.file(dataDirectory, old));
+      }
+    }
+  }
+
+  /**
+   * report the whole state as changes to an empty world, caller holds every location lock
+   * @param all every location including the unplaced one
+   * @param out where the changes go
+   */
+  private void dump(List<Location> all, WorldChanges out) {
+    for (Location location: all) {
+      for (Location exit: location.getExits()) {
+        out.exitAdded(location.getName(), exit.getName());
+      }
+      for (Map.Entry<String, Map<String, Integer>> sub: location.getContents().entrySet()) {
+        for (Map.Entry<String, Integer> entity: sub.getValue().entrySet()) {
+          out.entityAdded(location.getName(), sub.getKey(), entity.getKey(), entity.getValue());
+        }
+      }
+    }
+    Symbols symbols = world.getSymbols();
+    for (Player player: players.values()) {
+      out.playerMoved(player.getName(), positionOf(player).getName());
+      out.healthChanged(player.getName(), player.getHealth());
+      IntCountMap items = inventoryOf(player.getName()).getItems();
+      for (int i = 0; i < items.end(); i++) {
+        if (items.keyAt(i) >= 0) {
+          out.inventoryAdded(player.getName(), symbols.name(items.keyAt(i)), items.countAt(i));
+        }
+      }
     }
   }
 
+  /**
+   * empty every location before a snapshot is loaded, type headers stay
+   */
+  private void clearWorld() {
+    for (Location location: world.getLocations()) {
+      location.clear();
+    }
+    world.getUnplaced().clear();
+    players.clear();
+    inventories.clear();
+  }
 
   /**
-   * create an entity node
-   * @param thing entity
+   * find a location named in a change
+   * @param name location name
    * @return
    */
-  private Node createEntityNode(Entity thing) {
-    Node node = new Node();
-    Id nid = new Id();    // create an Id for entity
-    nid.setId(thing.getName());     // use name as id
-    node.setId(nid);
-    node.setAttribute("description", thing.getDescription()); // add description to node
-    return node;
+  private Location locationNamed(String name) {
+    Location location = world.getLocation(name);
+    return location != null ? location : world.getUnplaced();
   }
 
   /**
-   * add an entity to current location graph
-   * @param graph current location graph
-   * @param thing entity
+   * applies journaled changes to the state while it is recovered, nothing else runs then
    */
-  private void addEntityToGraph(Graph graph, Entity thing) {
+  private class Replay implements WorldChanges {
+
+    public void entityAdded(String location, String type, String entity, int count) {
+      locationNamed(location).add(type, entity, count);
+    }
 
-    Graph entityGraph = null;
-    for (Graph sub: graph.getSubgraphs()) {  // iterator to find target type graph
-      if (Objects.equals(sub.getId().getId(), thing.getId())) {
-        entityGraph = sub;
-        break;
+    public void entityRemoved(String location, String entity, int count) {
+      locationNamed(location).remove(entity, count);
+    }
+
+    public void exitAdded(String from, String to) {
+      locationNamed(from).addExit(locationNamed(to));
+    }
+
+    public void playerMoved(String player, String location) {
+      Graph position = locationNamed(location).getGraph();
+      Player moved = players.get(player);
+      if (moved == null) {
+        players.put(player, new Player(player, position));
+      }
+      else {
+        moved.setPosition(position);
       }
     }
 
-    if (entityGraph != null) {   // target type graph already in the graph
-      entityGraph.addNode(createEntityNode(thing));  // add entity node to target type graph
+    public void playerRemoved(String player) {
+      players.remove(player);
+      inventories.remove(player);
     }
-    else {  // target type graph not in the graph
-      Graph subGraph = createEntityGraph(thing);   // create the target entity graph
-      graph.addSubgraph(subGraph);  // add the target graph to current location graph
+
+    public void inventoryAdded(String player, String item, int count) {
+      for (int i = 0; i < count; i++) {
+        players.get(player).pickUp(new Artefacts(item, world.getDescription(item)));
+      }
+      inventoryOf(player).add(world.getSymbols().intern(item), count);
     }
 
+    public void inventoryRemoved(String player, String item, int count) {
+      players.get(player).drop(item, count);
+      inventoryOf(player).remove(world.getSymbols().id(item), count);
+    }
+
+    public void healthChanged(String player, int health) {
+      Player changed = players.get(player);
+      while (changed.getHealth() > health) {
+        changed.decreaseHealth(1);
+      }
+      while (changed.getHealth() < health) {
+        changed.increaseHealth(1);
+      }
+    }
 
   }
 
   /**
-   * create an target type graph of entity
-   * @param thing
-   * @return
+   * add entities to a location and report it
+   * @param location target location, caller holds its lock
+   * @param type entity type
+   * @param name entity name
+   * @param count how many
    */
-  private Graph createEntityGraph(Entity thing) {
-    Graph graph = new Graph();
-    Id id = new Id();   // create an Id(type) for the target graph
-    id.setId(thing.getId());  // use entity's type(id) as id
-    graph.setId(id);
-    graph.addGenericNodeAttribute("shape", thing.getShape()); // set graph's shape
-
-    Node node = createEntityNode(thing);   // create entity node
-    graph.addNode(node);  // add node to target graph
-    return graph;
+  private void addEntity(Location location, String type, String name, int count) {
+    location.add(type, name, count);
+    changes.entityAdded(location.getName(), type, name, count);
   }
 
   /**
-   * player pick up something
-   * @param player target player
-   * @param name target entity
-   * @return
+   * remove entities from a location and report it
+   * @param location target location, caller holds its lock
+   * @param name entity name
+   * @param count how many at most
+   * @return the entity's type, or null if it is not there
    */
-  public String pickUp(Player player, String name) {
-    Node node = removeThingFromPosition(player.getPosition(), name);  // remove the entity from current location graph
-    Artefacts artefacts = new Artefacts(name, node.getAttribute("description"));  // create a artefacts for the entity as detail
-    player.pickUp(artefacts);  // put it to the player's inventory
-    return "You pick up " + name;
+  private String removeEntity(Location location, String name, int count) {
+    int removed = Math.min(count, location.count(name));
+    String type = location.remove(name, count);
+    if (type != null) {
+      changes.entityRemoved(location.getName(), name, removed);
+    }
+    return type;
   }
 
   /**
-   * drop something from player
-   * @param player target player
-   * @param name target entity
+   * what a player carries, changed while the player's lock and its location's lock are held
+   * so a snapshot holding every location lock sees it whole. Player keeps its own copy
+   * for showing the inventory
+   * @param name player name
    * @return
    */
-  public String drop(Player player, String name) {
-    Artefacts artefacts = player.drop(name, 1);  // drop entity from player's entity
-    addEntityToGraph(player.getPosition(), artefacts); // add entity to current location graph
-    return "You drop " + name;
+  private Inventory inventoryOf(String name) {
+    return inventories.computeIfAbsent(name, key -> new Inventory());
   }
 
+  /**
+   * take the lock that serializes the commands of one player, callers hold it
+   * around findPlayer and the command they run for that player. The lock of an
+   * evicted player is dropped, so a lock is only returned once it is still the player's
+   * @param name player name
+   * @return the lock, held by the caller
+   */
+  public Lock lockPlayer(String name) {
+    while (true) {
+      ReentrantLock lock = playerLocks.computeIfAbsent(name, key -> new ReentrantLock());
+      lock.lock();
+      if (playerLocks.get(name) == lock) {
+        return lock;
+      }
+      lock.unlock();   // the player was evicted while we waited, take its new lock
+    }
+  }
 
   /**
-   * change player's location
-   * @param player target player
-   * @param pos target location
+   * find player by name
+   * @param name
    * @return
    */
-  public String gotoPosition(Player player, String pos) {
-    if (!hasEdgeToPos(player.getPosition().getNodes(false).get(0).getId().getId(), pos)) {  // check target location valid or not
-      return "You can't goto " + pos;
+  public Player findPlayer(String name) {
+    Player player = players.get(name);
+    if (player != null) {  // player already join the game, return player
+      touch(name);
+      return player;
+    }
+    if (playerStore != null && (player = rehydrate(name)) != null) {   // evicted, back where it was
+      return player;
+    }
+    // first join the game
+    Location start = world.getStart();
+    lockLocations(start, start);
+    try {
+      player = new Player(name, start.getGraph()); // initial the player in the start player
+      players.put(name, player);   // add to multi-player maintain
+      addEntity(start, player.getId(), name, 1); // add player to location
+      changes.playerMoved(name, start.getName());
+    } finally {
+      unlockLocations(start, start);
     }
+    track(name);
+    return player;
+  }
 
-    removeThingFromPosition(player.getPosition(), player.getName());  // remove the player from current location graph
-    Graph nextPos = findGraphByNode(pos);  // find target location graph by name
-    player.setPosition(nextPos);  // update location
-    addEntityToGraph(player.getPosition(), player);  // add player to new location graph
+  /**
+   * write idle players to disk from now on, see evictIdle
+   * @param idle milliseconds a player may be idle
+   */
+  private void startEviction(long idle) {
+    try {
+      playerStore = dataDirectory != null ? new StagPlayerStore(dataDirectory.resolve("players")) : StagPlayerStore.temporary();
+    } catch (IOException e) {
+      System.out.println(e);
+      return;
+    }
+    idleMillis = idle;
+    evictBatch = Integer.getInteger("stag.evict.batch", 256);
+    for (String name: players.keySet()) {   // recovered players, a copy left on disk by a crash is stale
+      try {
+        playerStore.delete(name);
+      } catch (IOException e) {
+        System.out.println(e);
+      }
+      track(name);
+    }
+    long tick = Long.getLong("stag.evict.tick", 1000);
+    evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "stag-evictor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    evictor.scheduleWithFixedDelay(() -> {
+      try {
+        evictionRunner.accept(this::evictIdle);
+      } catch (RuntimeException e) {   // keep evicting
+        System.out.println(e);
+      }
+    }, tick, tick, TimeUnit.MILLISECONDS);
+  }
 
-    return look(player);
+  /**
+   * run eviction steps somewhere else than the evictor thread, the single-writer game loop
+   * runs them between commands since its commands take no player locks
+   * @param runner runs a step and returns once it is done
+   */
+  void setEvictionRunner(Consumer<Runnable> runner) {
+    evictionRunner = runner;
+  }
 
+  /**
+   * start tracking a player that joined, caller holds its lock
+   * @param name
+   */
+  private void track(String name) {
+    if (playerStore != null && lastActive.putIfAbsent(name, new AtomicLong(System.currentTimeMillis())) == null) {
+      clock.add(name);
+    }
+  }
 
+  /**
+   * note a command of a player
+   * @param name
+   */
+  private void touch(String name) {
+    if (playerStore != null) {
+      AtomicLong last = lastActive.get(name);
+      if (last != null) {
+        last.lazySet(System.currentTimeMillis());
+      }
+    }
   }
 
   /**
-   * look the current location of the player
-   * @param player
-   * @return
+   * one step of the clock hand: visit the next stag.evict.batch players and evict those idle
+   * past the threshold. A player running a command is skipped, it isn't idle
    */
-  public String look(Player player) {
-    String resp = "You are in ";
-
-    String pos = player.getPosition().getNodes(false).get(0).getId().getId();  // current location name
-    resp = resp + pos + " now.\n";
-
-    resp = resp + "These following things are in these position:\n";
-    for(Graph sub: player.getPosition().getSubgraphs()) {  // iterator to visit different type entity in the location
-      String type = sub.getId().getId();
-      resp = resp + type + ":\n";
-      List<Node> nodes = sub.getNodes(false);
-      for (Node node: nodes) {  // iterator to visit different entity
-        if (Objects.equals(player.getName(), node.getId().getId())) {
-          continue;
+  void evictIdle() {
+    long now = System.currentTimeMillis();
+    for (int visited = 0; visited < evictBatch; visited++) {
+      String name = clock.poll();
+      if (name == null) {
+        return;
+      }
+      ReentrantLock lock = playerLocks.computeIfAbsent(name, key -> new ReentrantLock());
+      if (!lock.tryLock()) {
+        clock.add(name);
+        continue;
+      }
+      try {
+        Player player = players.get(name);
+        AtomicLong last = lastActive.get(name);
+        if (player == null || last == null || playerLocks.get(name) != lock) {   // died or handed over, joining tracks it again
+          lastActive.remove(name);
+        } else if (now - last.get() < idleMillis || !playerStore.canHold(name) || !evict(player)) {
+          clock.add(name);
+        } else {
+          lastActive.remove(name);
+          playerLocks.remove(name, lock);   // whoever waits on it finds out in lockPlayer
         }
-        resp = resp + "\t" + node.getId().getId() + "\n";
+      } finally {
+        lock.unlock();
       }
     }
+  }
 
-    resp = resp + "You can goto to the following position: \n";
-
-    List<String> adjacentPos = adjacentPosition(pos);   // get adjacent location can goto
-    for (String adjacent: adjacentPos) {
-      resp = resp + "\t" + adjacent + "\n";
+  /**
+   * write a player to the store and take it out of the world, caller holds its lock
+   * @param player
+   * @return false if it could not be written
+   */
+  private boolean evict(Player player) {
+    String name = player.getName();
+    Location position = positionOf(player);
+    try {
+      playerStore.write(name, record(player, position));   // its lock keeps the player from changing meanwhile
+    } catch (IOException e) {
+      System.out.println(e);
+      return false;
+    }
+    lockLocations(position, position);
+    try {
+      removeEntity(position, name, 1);
+      players.remove(name);
+      inventories.remove(name);
+      changes.playerRemoved(name);
+    } finally {
+      unlockLocations(position, position);
     }
-    return resp;
+    world.getSymbols().release(name);
+    evicted.increment();
+    return true;
   }
 
   /**
-   * get adjacent location can goto of the location
-   * @param name location's name
-   * @return
+   * bring an evicted player back where it was, caller holds its lock
+   * @param name player name
+   * @return null if the player is not in the store
    */
-  private List<String> adjacentPosition(String name) {
-    ArrayList<String> adjacentPos = new ArrayList<>();
+  private Player rehydrate(String name) {
+    String record;
+    try {
+      record = playerStore.read(name);
+    } catch (IOException e) {
+      System.out.println(e);
+      return null;
+    }
+    if (record == null) {
+      return null;
+    }
+    String[] fields = record.split(" ", 4);
+    Location position = world.getLocation(fields[0]);
+    Player player;
+    lockLocations(position, position);
+    try {
+      player = placePlayer(name, position, Integer.parseInt(fields[1]), fields[2]);
+    } finally {
+      unlockLocations(position, position);
+    }
+    playerStore.forget(name);
+    whenDurable().thenRunAsync(() -> playerStore.discard(name));   // the journal holds the player before its file goes
+    rehydrated.increment();
+    track(name);
+    return player;
+  }
 
-    ArrayList<Edge> edges = path.getEdges();   // get path edge
+  /**
+   * @return region owners, null when this state holds the whole world
+   */
+  public StagShards getShards() {
+    return shards;
+  }
 
-    for (Edge e : edges){  // iterator to visit each edge
-      String source = e.getSource().getNode().getId().getId();  // get edge source name
-      String target = e.getTarget().getNode().getId().getId();  // get edge target name
-      if (Objects.equals(source, name)) {   // source match location's
-        adjacentPos.add(target);  // add target name to adjacent locations
-      }
+  /**
+   * shard a command for a player has to be sent to instead of this one
+   * @param name player name
+   * @return shard number, or -1 if the player is here or joins here
+   */
+  public int redirectFor(String name) {
+    if (shards == null || players.containsKey(name) || playerStore != null && playerStore.contains(name)) {
+      return -1;
     }
+    Integer shard = movedTo.get(name);
+    if (shard != null) {
+      return shard;
+    }
+    Location start = world.getStart();
+    return shards.isLocal(world, start) ? -1 : shards.ownerOf(world, start);   // new players join at the start
+  }
 
-    return adjacentPos;
+  /**
+   * shard a player was handed to
+   * @param name player name
+   * @return shard number, or -1 if the player is still here
+   */
+  public int movedTo(String name) {
+    if (players.containsKey(name)) {
+      return -1;
+    }
+    return movedTo.getOrDefault(name, -1);
   }
 
+  /**
+   * take over a player handed over by another shard, see StagShards.HANDOFF, and describe where it arrived.
+   * Only a peer link calls this; its fields are still checked against the world, and a handoff that does not
+   * fit, or of a player already here, is answered with StagShards.REFUSED and changes nothing
+   * @param line handoff line
+   * @param out response buffer
+   */
+  public void receivePlayer(String line, StringBuilder out) {
+    String[] fields = line.substring(StagShards.HANDOFF.length()).split(" ", 4);
+    String refused = checkHandoff(fields);
+    if (refused != null) {
+      out.append(StagShards.REFUSED).append(refused);
+      return;
+    }
+    Location position = world.getLocation(fields[0]);
+    String name = fields[3];
+    Lock lock = lockPlayer(name);
+    if (players.containsKey(name) || playerStore != null && playerStore.contains(name)) {
+      lock.unlock();
+      out.append(StagShards.REFUSED).append(name).append(" is already here");
+      return;
+    }
+    lockLocations(position, position);
+    try {
+      Player player = placePlayer(name, position, Integer.parseInt(fields[1]), fields[2]);
+      movedTo.remove(name);
+      track(name);
+      describe(player, position, out);
+    } finally {
+      unlockLocations(position, position);
+      lock.unlock();
+    }
+  }
 
   /**
-   * find an location graph by location name
-   * @param name location name
-   * @return
+   * check the fields of a handoff against the world before anything is placed
+   * @param fields location, health, items and player
+   * @return why the handoff is refused, or null
    */
-  private Graph findGraphByNode(String name) {
-    for (Graph pos: locations.getSubgraphs()) {
-      Node node = pos.getNodes(false).get(0); // get location node
-      if (Objects.equals(name, node.getId().getId())) {  // location node name match location name
-        return pos;
+  private String checkHandoff(String[] fields) {
+    if (shards == null) {
+      return "Not a sharded world";
+    }
+    if (fields.length < 4 || fields[3].isEmpty()) {
+      return "Malformed handoff";
+    }
+    Location position = world.getLocation(fields[0]);
+    if (position == null || position == world.getUnplaced() || !shards.isLocal(world, position)) {
+      return "No location " + fields[0] + " here";
+    }
+    int health;
+    try {
+      health = Integer.parseInt(fields[1]);
+    } catch (NumberFormatException e) {
+      return "Bad health " + fields[1];
+    }
+    if (health <= 0 || health > new Player(fields[3], position.getGraph()).getHealth()) {   // a new player has full health
+      return "Bad health " + health;
+    }
+    if ("-".equals(fields[2])) {
+      return null;
+    }
+    for (String item: fields[2].split(",")) {
+      int equals = item.indexOf('=');
+      if (equals < 0 || !artefacts.contains(item.substring(0, equals))) {
+        return "Unknown item " + item;
+      }
+      try {
+        if (Integer.parseInt(item.substring(equals + 1)) <= 0) {
+          return "Bad count " + item;
+        }
+      } catch (NumberFormatException e) {
+        return "Bad count " + item;
       }
     }
     return null;
   }
 
   /**
-   * check location s to location t has a path or not
-   * @param s source location
-   * @param t target location
+   * put a player described by a handoff or a stored record into a location
+   * @param name player name, caller holds its lock
+   * @param position caller holds its lock
+   * @param health
+   * @param items "<item>=<count>,..." or "-"
    * @return
    */
-  private boolean hasEdgeToPos(String s, String t) {
-    ArrayList<Edge> edges = path.getEdges();
-
-    for (Edge e : edges){  // iterator to visit each path
-      String source = e.getSource().getNode().getId().getId(); // get source name
-      String target = e.getTarget().getNode().getId().getId(); // get target name
-      if (Objects.equals(source, s) && Objects.equals(t, target)) { // source and target name match, has a path
-        return true;
+  private Player placePlayer(String name, Location position, int health, String items) {
+    Player player = new Player(name, position.getGraph());
+    while (player.getHealth() > health) {
+      player.decreaseHealth(1);
+    }
+    players.put(name, player);
+    addEntity(position, player.getId(), name, 1);
+    changes.playerMoved(name, position.getName());
+    changes.healthChanged(name, health);
+    if (!"-".equals(items)) {
+      for (String item: items.split(",")) {
+        int equals = item.indexOf('=');
+        String itemName = item.substring(0, equals);
+        int count = Integer.parseInt(item.substring(equals + 1));
+        for (int i = 0; i < count; i++) {
+          player.pickUp(new Artefacts(itemName, world.getDescription(itemName)));
+        }
+        inventoryOf(name).add(world.getSymbols().intern(itemName), count);
+        changes.inventoryAdded(name, itemName, count);
       }
     }
-
-    return false;  // all path check, not find a path
+    return player;
   }
 
-
   /**
-   * parse an action element by the given element type
-   * @param behaviours action json object
-   * @param element given element type
-   * @param set element set
+   * describe a player as a handoff line and a stored record have it
+   * @param player caller holds its lock
+   * @param position where the player is, or goes to
+   * @return "<location> <health> <item>=<count>,... <player>", "-" for no items
    */
-  private void parseElement(JSONObject behaviours, String element, Set<String> set) {
-    JSONArray triggers = (JSONArray) behaviours.get(element);
-    for (Object obj: triggers) {
-      set.add((String) obj);
+  private String record(Player player, Location position) {
+    StringBuilder line = new StringBuilder();
+    line.append(position.getName()).append(' ').append(player.getHealth()).append(' ');
+    int mark = line.length();
+    IntCountMap items = inventoryOf(player.getName()).getItems();
+    for (int i = 0; i < items.end(); i++) {
+      if (items.keyAt(i) >= 0) {
+        line.append(line.length() > mark ? "," : "").append(world.getSymbols().name(items.keyAt(i)))
+            .append('=').append(items.countAt(i));
+      }
+    }
+    if (line.length() == mark) {
+      line.append('-');
     }
+    return line.append(' ').append(player.getName()).toString();
   }
 
+  /**
+   * forget where a player was handed to, it left that region and will join again at the start
+   * @param name player name
+   */
+  public void releasePlayer(String name) {
+    movedTo.remove(name);
+  }
 
   /**
-   * check the given subject is a target type entity or not in the current location
-   * @param graph  current location graph
-   * @param subject given subject
-   * @param target target type
-   * @return
+   * hand a player over to the shard owning the target location, the player is only
+   * removed here once the owner has taken it
+   * @param player caller holds its lock
+   * @param curPos player's location
+   * @param nextPos location in another region
+   * @param out response buffer
    */
-  private boolean isEntity(Graph graph, String subject, String target) {
-    for(Graph sub: graph.getSubgraphs()) { // iterator to visit each type graph
-      String type = sub.getId().getId();  // type id
-      if (!Objects.equals(type, target)) {
-        continue;
-      }
-      for (Node node: sub.getNodes(false)){  // match the target type graph, iterator to visit each entity node
-        if (Objects.equals(node.getId().getId(), subject)) {  // match entity name
-          return true;
-        }
+  private void handOff(Player player, Location curPos, Location nextPos, StringBuilder out) {
+    lockLocations(curPos, curPos);
+    try {
+      if (!curPos.hasExit(nextPos)) {
+        out.append("You can't goto ").append(nextPos.getName());
+        return;
       }
+    } finally {
+      unlockLocations(curPos, curPos);
+    }
+
+    int owner = shards.ownerOf(world, nextPos);
+    String arrived;
+    try {
+      arrived = shards.send(owner, StagShards.HANDOFF + record(player, nextPos));
+    } catch (IOException e) {
+      System.out.println(e);
+      out.append("You can't goto ").append(nextPos.getName()).append(" now");
+      return;
+    }
+    if (arrived.startsWith(StagShards.REFUSED)) {   // the owner would not take the player, it stays here
+      System.out.println("Handoff of " + player.getName() + " refused: " + arrived.substring(StagShards.REFUSED.length()));
+      out.append("You can't goto ").append(nextPos.getName()).append(" now");
+      return;
     }
 
-    return false;  // none match the subject
+    lockLocations(curPos, curPos);
+    try {
+      removeEntity(curPos, player.getName(), 1);
+      players.remove(player.getName());
+      inventories.remove(player.getName());
+      movedTo.put(player.getName(), owner);
+      changes.playerRemoved(player.getName());
+    } finally {
+      unlockLocations(curPos, curPos);
+    }
+    world.getSymbols().release(player.getName());
+    out.append(arrived);
   }
 
   /**
-   * get artefacts set in an action's subjects
-   * @param location current location graph
-   * @param subjects action' subject
+   * the location a player is in
+   * @param player
    * @return
    */
-  private Set<String> getArtefactsTools(Graph location, Set<String> subjects) {
-    Set<String> tools = new HashSet<>();
+  private Location positionOf(Player player) {
+    return world.getLocation(player.getPosition());
+  }
 
-    Set<String> furniture = getFurniture(location, subjects);  // get furniture set
+  /**
+   * lock two locations, lower index first so crossing moves can't deadlock
+   * @param a location
+   * @param b location, may be the same as a
+   */
+  private void lockLocations(Location a, Location b) {
+    ReentrantLock first = a.getLock();
+    ReentrantLock second = b.getLock();
+    if (a.getIndex() > b.getIndex()) {
+      ReentrantLock swap = first;
+      first = second;
+      second = swap;
+    }
+    first.lock();
+    if (second != first) {
+      second.lock();
+    }
+  }
+
+  /**
+   * release the locks taken by lockLocations
+   * @param a location
+   * @param b location, may be the same as a
+   */
+  private void unlockLocations(Location a, Location b) {
+    ReentrantLock first = a.getLock();
+    ReentrantLock second = b.getLock();
+    if (second != first) {
+      second.unlock();
+    }
+    first.unlock();
+  }
 
-    for (String subject: subjects) { // iterator to check each subject
-      if (!furniture.contains(subject) && !isEntity(location, subject, "characters")) {
-        tools.add(subject);  // if a subject is not a furniture nor a character, it is a artefacts.
+
+  /**
+   * player pick up something
+   * @param player target player
+   * @param name target entity
+   * @return
+   */
+  public String pickUp(Player player, String name) {
+    Location pos = positionOf(player);
+    lockLocations(pos, pos);
+    try {
+      if (removeEntity(pos, name, 1) == null) {  // remove the entity from current location
+        return "There is no " + name + " here";
       }
+      Artefacts artefacts = new Artefacts(name, world.getDescription(name));  // create a artefacts for the entity as detail
+      player.pickUp(artefacts);  // put it to the player's inventory
+      inventoryOf(player.getName()).add(world.getSymbols().intern(name), 1);
+      changes.inventoryAdded(player.getName(), name, 1);
+      return "You pick up " + name;
+    } finally {
+      unlockLocations(pos, pos);
     }
+  }
 
-    return tools;
+  /**
+   * drop something from player
+   * @param player target player
+   * @param name target entity
+   * @return
+   */
+  public String drop(Player player, String name) {
+    Location pos = positionOf(player);
+    lockLocations(pos, pos);
+    try {
+      if (inventoryOf(player.getName()).remove(world.getSymbols().id(name), 1) == 0) {
+        return "You don't have " + name;
+      }
+      Artefacts artefacts = player.drop(name, 1);  // drop entity from player's entity
+      changes.inventoryRemoved(player.getName(), name, 1);
+      addEntity(pos, artefacts.getId(), name, 1); // add entity to current location
+      return "You drop " + name;
+    } finally {
+      unlockLocations(pos, pos);
+    }
   }
 
 
   /**
-   * get a furniture set in an action's subjects
-   * @param location current location graph
-   * @param subjects action subjects
+   * change player's location
+   * @param player target player
+   * @param pos target location
    * @return
    */
-  private Set<String> getFurniture(Graph location, Set<String> subjects) {
-    Set<String> furniture = new HashSet<>();
+  public String gotoPosition(Player player, String pos) {
+    StringBuilder out = new StringBuilder();
+    gotoPosition(player, pos, out);
+    return out.toString();
+  }
 
-    for (String subject: subjects) {  // iterator to check each subject
-      if (isEntity(location, subject, "furniture")) {  // use isEntity to check is a furniture
-        furniture.add(subject);
-      }
+  /**
+   * change player's location, write the response to out
+   * @param player target player
+   * @param pos target location
+   * @param out response buffer
+   */
+  public void gotoPosition(Player player, String pos, StringBuilder out) {
+    if (move(player, pos, out)) {
+      look(player, out);
+    }
+  }
 
+  /**
+   * change player's location, write the new location or why it failed as a binary reply
+   * @param player target player
+   * @param pos target location
+   * @param out reply, TEXT unless the player moved here
+   */
+  public void gotoPosition(Player player, String pos, StagBinary.Reply out) {
+    StringBuilder text = new StringBuilder();
+    if (move(player, pos, text)) {
+      look(player, out);
+    } else {
+      out.putName(text);
     }
-    return furniture;
   }
 
   /**
-   * remove an entity from target type graph
-   * @param graph target type graph
-   * @param name entity name
-   * @return
+   * move a player, or write why not (or where another shard put it) to out
+   * @param player target player
+   * @param pos target location
+   * @param out response buffer
+   * @return true if the player moved within this state
    */
-  private Node removeThingFromGraph(Graph graph, String name) {
-    List<Node> nodes = graph.getNodes(true);  // get all entity nodes of the target graph, true for modify in place
-    Node remove = null;
-    for (Node node: nodes) { // iterator to find entity
-      if (Objects.equals(node.getId().getId(), name)) { // match the entity name
-        remove = node;
-        nodes.remove(remove); // remove node from graph
-        return node;
+  private boolean move(Player player, String pos, StringBuilder out) {
+    Location curPos = positionOf(player);
+    Location nextPos = world.getLocation(pos);  // find target location by name
+    if (nextPos == null) {
+      out.append("You can't goto ").append(pos);
+      return false;
+    }
+
+    if (shards != null && !shards.isLocal(world, nextPos)) {
+      handOff(player, curPos, nextPos, out);
+      return false;
+    }
+
+    lockLocations(curPos, nextPos);   // ordered, two players crossing each other can't deadlock
+    try {
+      if (!curPos.hasExit(nextPos)) {  // check target location valid or not
+        out.append("You can't goto ").append(pos);
+        return false;
       }
+      removeEntity(curPos, player.getName(), 1);  // remove the player from current location
+      player.setPosition(nextPos.getGraph());  // update location
+      addEntity(nextPos, player.getId(), player.getName(), 1);  // add player to new location
+      changes.playerMoved(player.getName(), nextPos.getName());
+    } finally {
+      unlockLocations(curPos, nextPos);
     }
-    return null; // none match
+    return true;
   }
 
   /**
-   * remove entity from current location graph
-   * @param pos current location graph
-   * @param name entity name
+   * look the current location of the player
+   * @param player
    * @return
    */
-  private Node removeThingFromPosition(Graph pos, String name) {
-    for (Graph sub: pos.getSubgraphs()) { // iterator different entity type graph to find entity
-     Node node = removeThingFromGraph(sub, name);  // call removeThingFromGraph to try remove
-     if (node != null) { // node is not null find and remove success
-       return node;
-     }
+  public String look(Player player) {
+    StringBuilder out = new StringBuilder();
+    look(player, out);
+    return out.toString();
+  }
+
+  /**
+   * look the current location of the player, write the response to out
+   * @param player
+   * @param out response buffer
+   */
+  public void look(Player player, StringBuilder out) {
+    Location position = positionOf(player);
+    lockLocations(position, position);
+    try {
+      describe(player, position, out);
+    } finally {
+      unlockLocations(position, position);
     }
-    return null;  // none match
   }
 
   /**
-   * check a entity is an unplaced object or not
-   * @param unplaced unplaced type graph
-   * @param name entity name
-   * @return
+   * look the current location of the player, write it as a PLACE reply
+   * @param player
+   * @param out reply
    */
-  private boolean isUnplacedObj(Graph unplaced, String name) {
-    for (Node node: unplaced.getNodes(true)) {  // iterator to visit all unplaced entity node to check
-      if (Objects.equals(node.getId().getId(), name)) {
-        return true;  // node match the name, find
+  public void look(Player player, StagBinary.Reply out) {
+    Location position = positionOf(player);
+    lockLocations(position, position);
+    try {
+      position.writeTo(out.restart(StagBinary.PLACE), world.getSymbols().id(player.getName()));
+    } finally {
+      unlockLocations(position, position);
+    }
+  }
+
+  /**
+   * write what a player carries as an ITEMS reply, caller holds the player's lock
+   * @param player
+   * @param out reply
+   */
+  public void inventory(Player player, StagBinary.Reply out) {
+    IntCountMap items = inventoryOf(player.getName()).getItems();
+    out.restart(StagBinary.ITEMS).putInt(items.size());
+    for (int i = 0; i < items.end(); i++) {
+      if (items.keyAt(i) >= 0) {
+        out.putId(items.keyAt(i)).putInt(items.countAt(i));
       }
     }
-    return false; // none match
   }
 
+  /**
+   * describe the current location of the player, caller holds the location lock
+   * @param player
+   * @param position player's location
+   * @param out response buffer
+   */
+  private void describe(Player player, Location position, StringBuilder out) {
+    position.render().appendTo(out, player.getName());  // rendered once per change, the player's own line is left out
+  }
+
+
+  /**
+   * parse an action element by the given element type
+   * @param behaviours action json object
+   * @param element given element type
+   * @param set element set
+   */
+  private void parseElement(JSONObject behaviours, String element, Set<String> set) {
+    JSONArray triggers = (JSONArray) behaviours.get(element);
+    for (Object obj: triggers) {
+      set.add((String) obj);
+    }
+  }
+
+
   /**
    * process action define by action file
    * @param player
@@ -441,116 +1197,207 @@ public class StagState {
    * @return
    */
   public String processAction(Player player, String[] message) {
-    String trigger = message[0]; // get trigger word
-    for (Action action: actions) { // iterator to check action trigger
-      if (action.hasTrigger(trigger)) {  // action has trigger word
-        Set<String> subjects = new HashSet<>();
+    Set<String> subjects = new HashSet<>();
+    int[] ids = new int[message.length];
+    for (int i = 1;  i < message.length; i++) {   // get player's subject
+      subjects.add(message[i]);
+      ids[i] = world.getSymbols().id(message[i]);
+    }
+    return processAction(player, message[0], subjects, ids, 1, message.length);
+  }
 
-        for (int i = 1;  i < message.length; i++) {   // get player's subject
-          subjects.add(message[i]);
-        }
+  /**
+   * process action define by action file, with the subjects already resolved to ids
+   * @param player
+   * @param trigger trigger word
+   * @param subjects subjects the player typed, without repeats
+   * @param ids symbol ids of the subjects, -1 for names never interned
+   * @param from first subject id
+   * @param to end of the subject ids
+   * @return
+   */
+  public String processAction(Player player, String trigger, Set<String> subjects, int[] ids, int from, int to) {
+    Location position = positionOf(player);
+    lockLocations(position, position);   // effects only touch the player's location, unplaced entities and paths
+    try {
+      return runAction(player, trigger, subjects, ids, from, to);
+    } finally {
+      unlockLocations(position, position);
+    }
+  }
 
-        if (!action.checkSubjects(subjects)) {  // compare to action's subject
-          return  "Your subjects don't match the action need.";
-        }
+  /**
+   * run an action in the player's location, caller holds the location lock
+   * @param player
+   * @param trigger
+   * @param subjects
+   * @param ids
+   * @param from
+   * @param to
+   * @return
+   */
+  private String runAction(Player player, String trigger, Set<String> subjects, int[] ids, int from, int to) {
+    List<Action> candidates = trigger == null ? null : actionsByTrigger.get(trigger);  // actions has trigger word
+    if (candidates == null) {
+      return "Your command is not support.";  // nothing action action match
+    }
+
+    Action action = chooseAction(candidates, subjects, ids, from, to);  // compare to action's subject
+    if (action == null) {
+      return  "Your subjects don't match the action need.";
+    }
 
-        subjects = action.getSubjects();
-        Set<String> tools = getArtefactsTools(player.getPosition(), subjects);
-        Set<String> furniture = getFurniture(player.getPosition(), subjects);
+    ActionMask mask = masks.get(action);
+    Location position = positionOf(player);
+    Inventory inventory = inventoryOf(player.getName());
+    Symbols symbols = world.getSymbols();
 
-        if(!player.hasTools(tools)) {   // check player has artefacts to act or not
-          return  "You don't have enough artefacts to act.";
-        }
+    // subjects that are not furniture nor characters here are artefacts the player has to carry
+    if (!mask.runnable(position.presence(furnitureType), position.presence(charactersType), inventory.getHeld())) {
+      return  "You don't have enough artefacts to act.";
+    }
 
-        Set<String> consumed = action.getConsumed();  // process consumed
-        for (String consume: consumed) {  // iterator to process each consumed
-          if (Objects.equals(consume, "health")) {  // consume health
-            player.decreaseHealth(1);  // decrease player' health
-            if (player.getHealth() == 0) {   // player run out health
-              Set<String> inventory = player.getInventoryKey();
-              for (String name: inventory) {    // iterator drop all thing to current location graph
-                int num = player.getInventoryNum(name);  // get number of the thing in inventory
-                Artefacts artefacts = player.drop(name, num); // drop all thing
-                for (int i = 0; i < num; i++) {  // add all thing to current location graph
-                  addEntityToGraph(player.getPosition(), artefacts);
-                }
-              }
-              players.remove(player.getName());  // reset player
-              return "You lose your life, drop every thing to the current location and return to start";
+    for (int consume: mask.getConsumed()) {  // iterator to process each consumed
+      if (consume == healthId) {  // consume health
+        player.decreaseHealth(1);  // decrease player' health
+        changes.healthChanged(player.getName(), player.getHealth());
+        if (player.getHealth() == 0) {   // player run out health
+          IntCountMap items = inventory.getItems();
+          for (int i = 0; i < items.end(); i++) {    // iterator drop all thing to current location, a stack at a time
+            if (items.keyAt(i) < 0) {
+              continue;
             }
+            String name = symbols.name(items.keyAt(i));
+            int num = items.countAt(i);  // get number of the thing in inventory
+            Artefacts artefacts = player.drop(name, num); // drop all thing
+            changes.inventoryRemoved(player.getName(), name, num);
+            addEntity(position, artefacts.getId(), name, num);  // add all thing to current location
           }
-          else if (isEntity(player.getPosition(), consume, "furniture")) { // consume furniture
-            removeThingFromPosition(player.getPosition(), consume); // remove furniture from location graph
-          }
-          else {  // consume player's artefacts
-            player.drop(consume, 1);   // drop a artefacts
-          }
-
+          inventory.clear();
+          players.remove(player.getName());  // reset player
+          inventories.remove(player.getName());
+          changes.playerRemoved(player.getName());
+          releaseToStart(player.getName());
+          return "You lose your life, drop every thing to the current location and return to start";
         }
+      }
+      else if (position.typeIdOf(consume) == furnitureType) { // consume furniture
+        removeEntity(position, symbols.name(consume), 1); // remove furniture from location
+      }
+      else if (inventory.remove(consume, 1) > 0) {  // consume player's artefacts
+        player.drop(symbols.name(consume), 1);
+        changes.inventoryRemoved(player.getName(), symbols.name(consume), 1);
+      }
 
-        Set<String> produced = action.getProduced();  // process produced
-        for (String prod : produced) { // iterator to process produced
-          if (Objects.equals(prod, "health")) { // produce health
-            player.increaseHealth(1);  // increase player's health
-          }
-          else {
-            // check produced is a type of unplaced entity or not
-            // if it is a unplaced entity
-            // remove unplaced entity from unplaced graph
-            // add unplaced entity to location graph
-            if (isUnplacedObj(unplacedCharacter, prod)) {
-              Node node = removeThingFromGraph(unplacedCharacter, prod);
-              Character character = new Character(prod, node.getAttribute("description"));
-              addEntityToGraph(player.getPosition(), character);
-            }
-            else if (isUnplacedObj(unplacedArtefacts, prod)) {
-              Node node = removeThingFromGraph(unplacedArtefacts, prod);
-              Artefacts artefacts = new Artefacts(prod, node.getAttribute("description"));
-              addEntityToGraph(player.getPosition(), artefacts);
-            }
-            else if (isUnplacedObj(unplacedFurniture, prod)) {
-              Node node = removeThingFromGraph(unplacedFurniture, prod);
-              Furniture furniture1 =  new Furniture(prod, node.getAttribute("description"));
-              addEntityToGraph(player.getPosition(), furniture1);
-            }
-            else {
-              // produced doesn't match any unplaced entity, it should be a location's name
-              // it should produce a path from current location to the produce location
-              Node src = player.getPosition().getNodes(false).get(0);  // current location node
-              PortNode source = new PortNode(src); // source portNode
-              Node tar = findLocationNode(prod);  // find produced location node
-              PortNode target = new PortNode(tar); // target portNode
-              Edge edge = new Edge(source, target, 2); // create a edge from current location to produced location
-              path.addEdge(edge);  // add edge to path
-            }
+    }
 
+    for (int produced: mask.getProduced()) { // iterator to process produced
+      String prod = symbols.name(produced);
+      if (produced == healthId) { // produce health
+        player.increaseHealth(1);  // increase player's health
+        changes.healthChanged(player.getName(), player.getHealth());
+      }
+      else {
+        // check produced is a type of unplaced entity or not
+        // if it is a unplaced entity
+        // remove unplaced entity from unplaced location
+        // add unplaced entity to current location
+        if (!produceUnplaced(position, prod)) {
+          // produced doesn't match any unplaced entity, it should be a location's name
+          // it should produce a path from current location to the produce location
+          Location target = world.getLocation(prod);  // find produced location
+          if (target != null) {
+            position.addExit(target);  // exits of a location are guarded by its lock, which is held
+            changes.exitAdded(position.getName(), target.getName());
           }
+        }
+
+      }
 
 
-        }
+    }
 
-        return action.getNarration();
+    return action.getNarration();
 
-      }
+  }
+
+  /**
+   * a dead player joins again at the start, when another shard owns it that shard
+   * is told to forget it handed the player away
+   * @param name player name
+   */
+  private void releaseToStart(String name) {
+    if (shards == null || shards.isLocal(world, world.getStart())) {
+      return;
+    }
+    int owner = shards.ownerOf(world, world.getStart());
+    try {
+      shards.send(owner, StagShards.RELEASE + name);
+    } catch (IOException e) {
+      System.out.println(e);
     }
+    movedTo.put(name, owner);
+  }
 
-    return "Your command is not support.";  // nothing action action match
+  /**
+   * choose the action the player meant among the actions sharing a trigger word
+   * @param candidates actions with the trigger word, in file order
+   * @param subjects subjects the player typed
+   * @param ids symbol ids of the subjects, repeats are counted once
+   * @param from first subject id
+   * @param to end of the subject ids
+   * @return the accepting action naming most of the typed subjects, earliest on a tie, or null if none accepts them
+   */
+  private Action chooseAction(List<Action> candidates, Set<String> subjects, int[] ids, int from, int to) {
+    Action best = null;
+    int bestMatched = -1;
+    for (Action action: candidates) {
+      if (!action.checkSubjects(subjects)) {
+        continue;
+      }
+      ActionMask mask = masks.get(action);
+      int matched = 0;
+      for (int i = from; i < to; i++) {
+        if (mask.hasSubject(ids[i]) && !repeated(ids, from, i)) {
+          matched++;
+        }
+      }
+      if (matched > bestMatched) {
+        best = action;
+        bestMatched = matched;
+      }
+    }
+    return best;
+  }
 
+  private static boolean repeated(int[] ids, int from, int i) {
+    for (int j = from; j < i; j++) {
+      if (ids[j] == ids[i]) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
-   * find location node by name
-   * @param name locathion name
-   * @return
+   * move a produced entity from the unplaced location to a location
+   * @param position current location, caller holds its lock
+   * @param prod produced entity name
+   * @return false if prod is not an unplaced entity
    */
-  private Node findLocationNode(String name) {
-    for (Graph location: locations.getSubgraphs()) { // iterator to visit each location
-      Node loc = location.getNodes(false).get(0);  // get location node
-      if (Objects.equals(loc.getId().getId(), name)) { // compare the node and name
-        return loc; // match
+  private boolean produceUnplaced(Location position, String prod) {
+    Location unplaced = world.getUnplaced();
+    unplaced.getLock().lock();   // taken after any location lock
+    try {
+      String type = removeEntity(unplaced, prod, 1);
+      if (type == null) {
+        return false;
       }
+      addEntity(position, type, prod, 1);  // keep the type it had while unplaced
+      return true;
+    } finally {
+      unplaced.getLock().unlock();
     }
-    return null;   // none match
   }
 
 }
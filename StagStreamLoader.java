@@ -0,0 +1,534 @@
+import com.alexmerz.graphviz.objects.Graph;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * this is a StagStreamLoader class, it builds the world while it reads the entity and action files
+ * instead of parsing them into whole object trees first, so memory at load stays close to the
+ * final game state however big the files are. Selected with -Dstag.loader=streaming.
+ *
+ * the entity file is read token by token: the first subgraph holds one subgraph per location
+ * (its first node is the location, its subgraphs are typed entities), the second holds the path edges.
+ * The action file is read with json-simple's event parser, one action is built at a time.
+ */
+public class StagStreamLoader {
+
+  private static final int PROGRESS_STEP = 10;   // report every this many percent of a file
+
+  /**
+   * read locations, entities and paths from an entity file into the world
+   * @param entityFileName
+   * @param world empty world to fill
+   */
+  public static void loadEntities(String entityFileName, World world) {
+    File file = new File(entityFileName);
+    try (Progress progress = new Progress(file, "entities")) {
+      DotReader dot = new DotReader(new BufferedReader(new InputStreamReader(progress, StandardCharsets.UTF_8)));
+      dot.expect(Token.ID);   // digraph or graph
+      if (dot.next() == Token.ID) {   // graph name
+        dot.next();
+      }
+      dot.check(Token.OPEN);
+      int section = 0;
+      while (dot.nextInBlock() != Token.CLOSE) {
+        if (dot.isKeyword("subgraph") || dot.token == Token.OPEN) {
+          openSubgraph(dot);
+          if (section == 0) {
+            readLocations(dot, world);
+          } else if (section == 1) {
+            readPaths(dot, world);
+          } else {
+            skipBlock(dot);
+          }
+          section++;
+        } else {
+          skipStatement(dot);
+        }
+      }
+      System.out.println("Loaded " + world.getLocations().size() + " locations");
+    } catch (IOException | IllegalStateException e) {
+      System.out.println(e);
+    }
+  }
+
+  /**
+   * read actions from an action file and add them to the state
+   * @param actionFileName
+   * @param state state the actions are added to
+   */
+  public static void loadActions(String actionFileName, StagState state) {
+    File file = new File(actionFileName);
+    try (Progress progress = new Progress(file, "actions")) {
+      ActionHandler handler = new ActionHandler(state);
+      new JSONParser().parse(new BufferedReader(new InputStreamReader(progress, StandardCharsets.UTF_8)), handler);
+      System.out.println("Loaded " + handler.count + " actions");
+    } catch (IOException | ParseException e) {
+      System.out.println(e);
+    }
+  }
+
+  /**
+   * consume a subgraph head up to and including its opening brace
+   * @param dot reader positioned on "subgraph" or "{"
+   * @return subgraph name, null if it has none
+   */
+  private static String openSubgraph(DotReader dot) throws IOException {
+    String name = null;
+    if (dot.token != Token.OPEN) {
+      if (dot.next() == Token.ID) {
+        name = dot.text;
+        dot.next();
+      }
+      dot.check(Token.OPEN);
+    }
+    return name;
+  }
+
+  private static void readLocations(DotReader dot, World world) throws IOException {
+    while (dot.nextInBlock() != Token.CLOSE) {
+      if (dot.isKeyword("subgraph") || dot.token == Token.OPEN) {
+        openSubgraph(dot);
+        readLocation(dot, world);
+      } else {
+        skipStatement(dot);
+      }
+    }
+  }
+
+  /**
+   * read one location subgraph, entities met before the location node are held until it is known
+   */
+  private static void readLocation(DotReader dot, World world) throws IOException {
+    Location location = null;
+    List<String[]> early = new ArrayList<>();   // {type, name, description}, name null for an empty type
+    while (dot.nextInBlock() != Token.CLOSE) {
+      if (dot.isKeyword("subgraph") || dot.token == Token.OPEN) {
+        String type = openSubgraph(dot);
+        if (location == null) {
+          early.add(new String[] { type, null, null });
+        } else {
+          location.addType(type);
+        }
+        while (dot.nextInBlock() != Token.CLOSE) {
+          String[] node = readStatement(dot);
+          if (node == null) {
+            continue;
+          }
+          if (location == null) {
+            early.add(new String[] { type, node[0], node[1] });
+          } else {
+            world.addEntity(location, type, node[0], node[1]);
+          }
+        }
+      } else {
+        String[] node = readStatement(dot);
+        if (node != null && location == null) {
+          location = world.addLocation(node[0], node[1], new Graph());
+          for (String[] entity: early) {
+            if (entity[1] == null) {
+              location.addType(entity[0]);
+            } else {
+              world.addEntity(location, entity[0], entity[1], entity[2]);
+            }
+          }
+          early = null;
+        }
+      }
+    }
+    if (location == null) {
+      System.out.println("Location subgraph without a location node skipped");
+    }
+  }
+
+  private static void readPaths(DotReader dot, World world) throws IOException {
+    while (dot.nextInBlock() != Token.CLOSE) {
+      if (dot.token != Token.ID || dot.isKeyword("node") || dot.isKeyword("edge") || dot.isKeyword("graph")) {
+        skipStatement(dot);
+        continue;
+      }
+      Location source = world.getLocation(dot.text);
+      while (dot.next() == Token.ARROW) {   // a -> b -> c is two edges
+        dot.expect(Token.ID);
+        Location target = world.getLocation(dot.text);
+        if (source != null && target != null) {
+          source.addExit(target);
+        }
+        source = target;
+      }
+      if (dot.token == Token.ATTRIBUTES) {
+        skipAttributes(dot);
+        dot.next();
+      }
+      endStatement(dot);
+    }
+  }
+
+  /**
+   * read a statement inside a subgraph
+   * @return {name, description} of a node statement, null for anything else
+   */
+  private static String[] readStatement(DotReader dot) throws IOException {
+    if (dot.token != Token.ID || dot.isKeyword("node") || dot.isKeyword("edge") || dot.isKeyword("graph")) {
+      skipStatement(dot);
+      return null;
+    }
+    String name = dot.text;
+    String description = null;
+    switch (dot.next()) {
+      case ATTRIBUTES:
+        while (dot.next() != Token.CLOSE_ATTRIBUTES) {   // key = value pairs
+          if (dot.token == Token.END) {
+            throw new IllegalStateException("Unterminated attribute list of " + name);
+          }
+          if (dot.token != Token.ID) {
+            continue;
+          }
+          String key = dot.text;
+          dot.expect(Token.EQUALS);
+          dot.expect(Token.ID);
+          if ("description".equals(key)) {
+            description = dot.text;
+          }
+        }
+        dot.next();
+        break;
+      case EQUALS:   // graph attribute or edge inside a location, not an entity
+      case ARROW:
+        skipStatement(dot);
+        return null;
+      default:
+    }
+    endStatement(dot);
+    return new String[] { name, description };
+  }
+
+  /**
+   * the reader is on the token after a statement, consume it if it is the optional ";"
+   */
+  private static void endStatement(DotReader dot) {
+    if (dot.token != Token.SEMICOLON) {
+      dot.pushBack();
+    }
+  }
+
+  private static void skipAttributes(DotReader dot) throws IOException {
+    while (dot.next() != Token.CLOSE_ATTRIBUTES && dot.token != Token.END) {
+    }
+  }
+
+  /**
+   * skip the statement the reader is on, a new identifier right after a complete one starts the next statement
+   */
+  private static void skipStatement(DotReader dot) throws IOException {
+    Token previous = dot.token;
+    while (previous != Token.SEMICOLON) {
+      switch (dot.next()) {
+        case SEMICOLON:
+        case END:
+          return;
+        case CLOSE:
+          dot.pushBack();
+          return;
+        case OPEN:
+          skipBlock(dot);
+          return;
+        case ATTRIBUTES:
+          skipAttributes(dot);
+          break;
+        case ID:
+          if (previous == Token.ID || previous == Token.CLOSE_ATTRIBUTES) {
+            dot.pushBack();
+            return;
+          }
+          break;
+        default:
+      }
+      previous = dot.token;
+    }
+  }
+
+  private static void skipBlock(DotReader dot) throws IOException {
+    int depth = 1;
+    while (depth > 0 && dot.token != Token.END) {
+      dot.next();
+      if (dot.token == Token.OPEN) {
+        depth++;
+      } else if (dot.token == Token.CLOSE) {
+        depth--;
+      }
+    }
+  }
+
+  private enum Token { ID, OPEN, CLOSE, ATTRIBUTES, CLOSE_ATTRIBUTES, EQUALS, SEMICOLON, COMMA, ARROW, END }
+
+  /**
+   * DOT tokenizer over a reader, holds one token and the characters of the current identifier only
+   */
+  private static class DotReader {
+
+    private final Reader reader;
+    private final StringBuilder buffer = new StringBuilder();
+    private int lookahead = -2;      // next character, -2 when none is held
+    private boolean pushedBack;      // next() returns the current token again
+    Token token;
+    String text;                     // identifier or quoted string of an ID token
+
+    DotReader(Reader reader) {
+      this.reader = reader;
+    }
+
+    private int read() throws IOException {
+      if (lookahead != -2) {
+        int c = lookahead;
+        lookahead = -2;
+        return c;
+      }
+      return reader.read();
+    }
+
+    private int peek() throws IOException {
+      if (lookahead == -2) {
+        lookahead = reader.read();
+      }
+      return lookahead;
+    }
+
+    void pushBack() {
+      pushedBack = true;
+    }
+
+    boolean isKeyword(String keyword) {
+      return token == Token.ID && keyword.equalsIgnoreCase(text);
+    }
+
+    void check(Token expected) {
+      if (token != expected) {
+        throw new IllegalStateException("Expected " + expected + " but found " + token + (text == null ? "" : " " + text));
+      }
+    }
+
+    void expect(Token expected) throws IOException {
+      next();
+      check(expected);
+    }
+
+    /**
+     * next token inside a block, which must be closed before the input ends
+     */
+    Token nextInBlock() throws IOException {
+      if (next() == Token.END) {
+        throw new IllegalStateException("Unexpected end of entity file, missing }");
+      }
+      return token;
+    }
+
+    Token next() throws IOException {
+      if (pushedBack) {
+        pushedBack = false;
+        return token;
+      }
+      text = null;
+      int c = read();
+      while (true) {   // skip blanks and comments
+        if (c != -1 && java.lang.Character.isWhitespace(c)) {
+          c = read();
+        } else if (c == '#') {
+          while (c != '\n' && c != -1) {
+            c = read();
+          }
+        } else if (c == '/' && peek() == '/') {
+          while (c != '\n' && c != -1) {
+            c = read();
+          }
+        } else if (c == '/' && peek() == '*') {
+          read();
+          int previous = 0;
+          c = read();
+          while (c != -1 && !(previous == '*' && c == '/')) {
+            previous = c;
+            c = read();
+          }
+          c = read();
+        } else {
+          break;
+        }
+      }
+      switch (c) {
+        case -1: return token = Token.END;
+        case '{': return token = Token.OPEN;
+        case '}': return token = Token.CLOSE;
+        case '[': return token = Token.ATTRIBUTES;
+        case ']': return token = Token.CLOSE_ATTRIBUTES;
+        case '=': return token = Token.EQUALS;
+        case ';': return token = Token.SEMICOLON;
+        case ',': return token = Token.COMMA;
+        default:
+      }
+      buffer.setLength(0);
+      if (c == '-' && (peek() == '>' || peek() == '-')) {
+        read();
+        return token = Token.ARROW;
+      }
+      if (c == '"') {
+        c = read();
+        while (c != '"' && c != -1) {
+          if (c == '\\' && peek() == '"') {
+            c = read();
+          }
+          buffer.append((char) c);
+          c = read();
+        }
+      } else {
+        buffer.append((char) c);
+        while (isIdentifier(peek())) {
+          buffer.append((char) read());
+        }
+      }
+      text = buffer.toString();
+      return token = Token.ID;
+    }
+
+    private static boolean isIdentifier(int c) {
+      return c == '_' || c == '.' || java.lang.Character.isLetterOrDigit(c);
+    }
+
+  }
+
+  /**
+   * json-simple event handler for {"actions": [ {...}, ... ]}, builds one action at a time
+   */
+  private static class ActionHandler implements ContentHandler {
+
+    private final StagState state;
+    private int depth;            // object and array nesting
+    private boolean inActions;    // inside the top level "actions" array
+    private String key;           // field of the current action
+    private Set<String> triggers, subjects, consumed, produced;
+    private String narration;
+    int count;
+
+    ActionHandler(StagState state) {
+      this.state = state;
+    }
+
+    public void startJSON() {
+    }
+
+    public void endJSON() {
+    }
+
+    public boolean startObject() {
+      depth++;
+      if (inActions && depth == 3) {   // root object, actions array, action object
+        triggers = new HashSet<>();
+        subjects = new HashSet<>();
+        consumed = new HashSet<>();
+        produced = new HashSet<>();
+        narration = null;
+      }
+      return true;
+    }
+
+    public boolean endObject() {
+      if (inActions && depth == 3) {
+        state.addAction(triggers, new Action(triggers, subjects, consumed, produced, narration));
+        count++;
+      }
+      depth--;
+      return true;
+    }
+
+    public boolean startObjectEntry(String name) {
+      key = name;
+      return true;
+    }
+
+    public boolean endObjectEntry() {
+      return true;
+    }
+
+    public boolean startArray() {
+      depth++;
+      if (depth == 2 && "actions".equals(key)) {
+        inActions = true;
+      }
+      return true;
+    }
+
+    public boolean endArray() {
+      if (depth == 2) {
+        inActions = false;
+      }
+      depth--;
+      return true;
+    }
+
+    public boolean primitive(Object value) {
+      if (!inActions || !(value instanceof String)) {
+        return true;
+      }
+      String element = (String) value;
+      if (depth == 3 && "narration".equals(key)) {
+        narration = element;
+      } else if (depth == 4) {
+        switch (key) {
+          case "triggers": triggers.add(element); break;
+          case "subjects": subjects.add(element); break;
+          case "consumed": consumed.add(element); break;
+          case "produced": produced.add(element); break;
+          default:
+        }
+      }
+      return true;
+    }
+
+  }
+
+  /**
+   * file input that prints how far loading has got
+   */
+  private static class Progress extends FilterInputStream {
+
+    private final String what;
+    private final long size;
+    private long read;
+    private int reported;   // last percentage printed
+
+    Progress(File file, String what) throws FileNotFoundException {
+      super(new FileInputStream(file));
+      this.what = what;
+      this.size = Math.max(1, file.length());
+    }
+
+    private void advance(long n) {
+      if (n <= 0) {
+        return;
+      }
+      read += n;
+      int percent = (int) (read * 100 / size);
+      if (percent >= reported + PROGRESS_STEP) {
+        reported = percent - percent % PROGRESS_STEP;
+        System.out.println("Loading " + what + ": " + reported + "%");
+      }
+    }
+
+    public int read() throws IOException {
+      int c = super.read();
+      advance(c < 0 ? 0 : 1);
+      return c;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      advance(n);
+      return n;
+    }
+
+  }
+
+}
@@ -0,0 +1,117 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * this is a Symbols class that interns names (locations, entity types, entities)
+ * to dense int ids. The names of the world are sealed once it is loaded and keep their ids for good;
+ * names interned later, players, are released when the player leaves and their ids handed out again
+ */
+public class Symbols {
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();  // name -> id
+  private volatile String[] names = new String[64];   // id -> name
+  private int size;   // ids handed out, guarded by this
+  private int sealed; // ids below this are the world's and never released, guarded by this
+  private int[] free = new int[16];   // released ids, guarded by this
+  private int freeCount;
+
+  /**
+   * get the id of a name, interning it on first sight
+   * @param name
+   * @return
+   */
+  public int intern(String name) {
+    Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(name);
+      if (id == null) {   // still new, hand out a released id or the next one
+        if (freeCount > 0) {
+          id = free[--freeCount];
+        } else {
+          if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+          }
+          id = size++;
+        }
+        names[id] = name;
+        ids.put(name, id);
+      }
+      return id;
+    }
+  }
+
+  /**
+   * keep every name interned so far for good, called once the world is loaded
+   */
+  public synchronized void seal() {
+    sealed = size;
+  }
+
+  /**
+   * number of sealed names, ids 0 to sealed() - 1 always mean the same name
+   * @return
+   */
+  public synchronized int sealed() {
+    return sealed;
+  }
+
+  /**
+   * forget a name interned after seal, its id may be handed to another name.
+   * Sealed names stay, a player named like a thing of the world keeps that thing's id
+   * @param name
+   */
+  public synchronized void release(String name) {
+    Integer id = ids.get(name);
+    if (id == null || id < sealed) {
+      return;
+    }
+    ids.remove(name);
+    names[id] = null;
+    if (freeCount == free.length) {
+      free = Arrays.copyOf(free, freeCount * 2);
+    }
+    free[freeCount++] = id;
+  }
+
+  /**
+   * get the id of a name without interning it
+   * @param name
+   * @return the id, or -1 if the name was never interned
+   */
+  public int id(String name) {
+    Integer id = ids.get(name);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * get the name of an id
+   * @param id
+   * @return
+   */
+  public String name(int id) {
+    return names[id];
+  }
+
+  /**
+   * get the name of an id a client sent, without trusting it
+   * @param id
+   * @return the name, or null if no such id was handed out or it was released
+   */
+  public String find(int id) {
+    String[] all = names;
+    return id >= 0 && id < all.length ? all[id] : null;
+  }
+
+  /**
+   * number of ids handed out, released ones included
+   * @return
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+}
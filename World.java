@@ -0,0 +1,160 @@
+import com.alexmerz.graphviz.objects.Graph;
+
+import java.util.*;
+
+/**
+ * this is a World class, the indexed in-memory model of the map built when the entity file is loaded
+ */
+public class World {
+
+  private static final int UNPLACED_INDEX = Integer.MAX_VALUE;   // unplaced location is always locked last
+
+  private final Symbols symbols = new Symbols();   // interned names
+  private final List<Location> locations = new ArrayList<>();   // locations in load order, the first one is the start
+  private final Map<String, Location> byName = new HashMap<>();  // location name -> location
+  private final Map<Graph, Location> byGraph = new IdentityHashMap<>();  // graph handle -> location
+  private final Map<String, String> descriptions = new HashMap<>();  // entity name -> description
+  private Location unplaced;   // holds entities not yet in the game
+
+  /**
+   * add a location, fixed after load
+   * @param name location name
+   * @param description location description
+   * @param graph graph handle players keep as their position
+   * @return
+   */
+  public Location addLocation(String name, String description, Graph graph) {
+    symbols.intern(name);
+    boolean isUnplaced = Objects.equals("unplaced", name);
+    Location location = new Location(isUnplaced ? UNPLACED_INDEX : locations.size(), name, description, graph, symbols);
+    locations.add(location);
+    byName.put(name, location);
+    byGraph.put(graph, location);
+    if (isUnplaced) {
+      unplaced = location;
+    }
+    return location;
+  }
+
+  /**
+   * add an entity to a location and remember its description
+   * @param location target location
+   * @param type entity type
+   * @param name entity name
+   * @param description entity description
+   */
+  public void addEntity(Location location, String type, String name, String description) {
+    symbols.intern(type);
+    symbols.intern(name);
+    location.add(type, name, 1);
+    describe(name, description);
+  }
+
+  /**
+   * remember an entity's description
+   * @param name entity name
+   * @param description entity description
+   */
+  public void describe(String name, String description) {
+    if (description != null) {
+      descriptions.put(name, description);
+    }
+  }
+
+  /**
+   * get an entity's description
+   * @param name entity name
+   * @return
+   */
+  public String getDescription(String name) {
+    return descriptions.get(name);
+  }
+
+  /**
+   * entity name -> description
+   * @return
+   */
+  public Map<String, String> getDescriptions() {
+    return Collections.unmodifiableMap(descriptions);
+  }
+
+  public Symbols getSymbols() {
+    return symbols;
+  }
+
+  /**
+   * the location new players start in
+   * @return
+   */
+  public Location getStart() {
+    return locations.get(0);
+  }
+
+  /**
+   * the holder of unplaced entities, empty if the entity file has none
+   * @return
+   */
+  public Location getUnplaced() {
+    if (unplaced == null) {
+      unplaced = new Location(UNPLACED_INDEX, "unplaced", "", new Graph(), symbols);
+    }
+    return unplaced;
+  }
+
+  /**
+   * find a location by name
+   * @param name location name
+   * @return the location, or null if there is none
+   */
+  public Location getLocation(String name) {
+    return byName.get(name);
+  }
+
+  /**
+   * find the location a position graph stands for
+   * @param graph position graph
+   * @return
+   */
+  public Location getLocation(Graph graph) {
+    return byGraph.get(graph);
+  }
+
+  public List<Location> getLocations() {
+    return Collections.unmodifiableList(locations);
+  }
+
+  /**
+   * entities in all locations, players included, each location is locked while it is counted
+   * @return
+   */
+  public long countEntities() {
+    long count = 0;
+    for (Location location: locations) {
+      location.getLock().lock();
+      try {
+        count += location.countEntities();
+      } finally {
+        location.getLock().unlock();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * paths between locations, each location is locked while it is counted
+   * @return
+   */
+  public long countExits() {
+    long count = 0;
+    for (Location location: locations) {
+      location.getLock().lock();
+      try {
+        count += location.getExits().size();
+      } finally {
+        location.getLock().unlock();
+      }
+    }
+    return count;
+  }
+
+}
@@ -0,0 +1,132 @@
+/**
+ * this is a WorldChanges interface, the effects a command has on the game state.
+ * StagState reports every change through it while holding the locks that ordered the change,
+ * and the same calls rebuild the state when they are read back.
+ */
+public interface WorldChanges {
+
+  /**
+   * entities were added to a location
+   * @param location location name
+   * @param type entity type
+   * @param entity entity name
+   * @param count how many
+   */
+  void entityAdded(String location, String type, String entity, int count);
+
+  /**
+   * entities were removed from a location
+   * @param location location name
+   * @param entity entity name
+   * @param count how many
+   */
+  void entityRemoved(String location, String entity, int count);
+
+  /**
+   * a path was added between two locations
+   * @param from location name
+   * @param to location name
+   */
+  void exitAdded(String from, String to);
+
+  /**
+   * a player joined or moved, its entity is reported separately by entityAdded and entityRemoved
+   * @param player player name
+   * @param location location name
+   */
+  void playerMoved(String player, String location);
+
+  /**
+   * a player left the game
+   * @param player player name
+   */
+  void playerRemoved(String player);
+
+  /**
+   * artefacts were put in a player's inventory
+   * @param player player name
+   * @param item artefact name
+   * @param count how many
+   */
+  void inventoryAdded(String player, String item, int count);
+
+  /**
+   * artefacts were taken out of a player's inventory
+   * @param player player name
+   * @param item artefact name
+   * @param count how many
+   */
+  void inventoryRemoved(String player, String item, int count);
+
+  /**
+   * a player's health changed
+   * @param player player name
+   * @param health new health
+   */
+  void healthChanged(String player, int health);
+
+  /**
+   * report changes to two receivers, first to first
+   * @param first
+   * @param second
+   * @return
+   */
+  static WorldChanges both(WorldChanges first, WorldChanges second) {
+    return new WorldChanges() {
+      public void entityAdded(String location, String type, String entity, int count) {
+        first.entityAdded(location, type, entity, count);
+        second.entityAdded(location, type, entity, count);
+      }
+
+      public void entityRemoved(String location, String entity, int count) {
+        first.entityRemoved(location, entity, count);
+        second.entityRemoved(location, entity, count);
+      }
+
+      public void exitAdded(String from, String to) {
+        first.exitAdded(from, to);
+        second.exitAdded(from, to);
+      }
+
+      public void playerMoved(String player, String location) {
+        first.playerMoved(player, location);
+        second.playerMoved(player, location);
+      }
+
+      public void playerRemoved(String player) {
+        first.playerRemoved(player);
+        second.playerRemoved(player);
+      }
+
+      public void inventoryAdded(String player, String item, int count) {
+        first.inventoryAdded(player, item, count);
+        second.inventoryAdded(player, item, count);
+      }
+
+      public void inventoryRemoved(String player, String item, int count) {
+        first.inventoryRemoved(player, item, count);
+        second.inventoryRemoved(player, item, count);
+      }
+
+      public void healthChanged(String player, int health) {
+        first.healthChanged(player, health);
+        second.healthChanged(player, health);
+      }
+    };
+  }
+
+  /**
+   * changes that go nowhere, used when persistence is off
+   */
+  WorldChanges NONE = new WorldChanges() {
+    public void entityAdded(String location, String type, String entity, int count) {}
+    public void entityRemoved(String location, String entity, int count) {}
+    public void exitAdded(String from, String to) {}
+    public void playerMoved(String player, String location) {}
+    public void playerRemoved(String player) {}
+    public void inventoryAdded(String player, String item, int count) {}
+    public void inventoryRemoved(String player, String item, int count) {}
+    public void healthChanged(String player, int health) {}
+  };
+
+}
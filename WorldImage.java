@@ -0,0 +1,314 @@
+import com.alexmerz.graphviz.objects.Graph;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * this is a WorldImage class, a compiled binary form of an entity file and an action file
+ * that the server maps and loads without parsing DOT or JSON.
+ *
+ * layout, all strings are ids into the string table:
+ * header   [magic][version][entity file crc][action file crc][body length][body crc]
+ * strings  [count]([u16 length][utf-8])*
+ * entities [count]([name][description])*
+ * places   [count]([name][description][types]([type][entities]([name][count])*)*)*
+ * exits    [offsets: places + 1 ints][targets: place indexes] adjacency in CSR form
+ * actions  [count]([narration][subjects][consumed][produced], each a list of ids)*
+ * triggers [count]([trigger][actions]([action index])*)*
+ */
+public class WorldImage {
+
+  private static final long MAGIC = 0x53544147574f524cL;   // "STAGWORL"
+  private static final int VERSION = 1;
+  private static final int HEADER = 8 + 4 + 8 + 8 + 4 + 4;
+
+  /**
+   * crc32 of a source file
+   * @param fileName
+   * @return the checksum, or -1 if the file can't be read
+   */
+  public static long checksum(String fileName) {
+    try {
+      CRC32 crc = new CRC32();
+      crc.update(Files.readAllBytes(Paths.get(fileName)));
+      return crc.getValue();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * compile a loaded game state into an image
+   * @param file image file
+   * @param state state loaded from the text files
+   * @param entityFileName entity file it was loaded from
+   * @param actionFileName action file it was loaded from
+   * @throws IOException
+   */
+  public static void write(Path file, StagState state, String entityFileName, String actionFileName) throws IOException {
+    World world = state.getWorld();
+    Map<String, Integer> strings = new LinkedHashMap<>();
+    Body body = new Body();
+
+    Body entities = new Body();
+    entities.putInt(world.getDescriptions().size());
+    for (Map.Entry<String, String> entity: world.getDescriptions().entrySet()) {
+      entities.putInt(intern(strings, entity.getKey()));
+      entities.putInt(intern(strings, entity.getValue()));
+    }
+
+    List<Location> places = world.getLocations();
+    Map<Location, Integer> placeIndex = new IdentityHashMap<>();
+    for (Location place: places) {
+      placeIndex.put(place, placeIndex.size());
+    }
+    Body placesBody = new Body();
+    placesBody.putInt(places.size());
+    for (Location place: places) {
+      placesBody.putInt(intern(strings, place.getName()));
+      placesBody.putInt(intern(strings, place.getDescription() == null ? "" : place.getDescription()));
+      placesBody.putInt(place.getContents().size());
+      for (Map.Entry<String, Map<String, Integer>> sub: place.getContents().entrySet()) {
+        placesBody.putInt(intern(strings, sub.getKey()));
+        placesBody.putInt(sub.getValue().size());
+        for (Map.Entry<String, Integer> entity: sub.getValue().entrySet()) {
+          placesBody.putInt(intern(strings, entity.getKey()));
+          placesBody.putInt(entity.getValue());
+        }
+      }
+    }
+    int offset = 0;
+    for (Location place: places) {   // exit offsets
+      placesBody.putInt(offset);
+      offset += place.getExits().size();
+    }
+    placesBody.putInt(offset);
+    for (Location place: places) {   // exit targets
+      for (Location exit: place.getExits()) {
+        placesBody.putInt(placeIndex.get(exit));
+      }
+    }
+
+    Map<Action, Integer> actionIndex = new IdentityHashMap<>();
+    Body actionsBody = new Body();
+    actionsBody.putInt(state.actions.size());
+    for (Action action: state.actions) {
+      actionIndex.put(action, actionIndex.size());
+      actionsBody.putInt(intern(strings, action.getNarration() == null ? "" : action.getNarration()));
+      putIds(actionsBody, strings, action.getSubjects());
+      putIds(actionsBody, strings, action.getConsumed());
+      putIds(actionsBody, strings, action.getProduced());
+    }
+    actionsBody.putInt(state.getActionsByTrigger().size());
+    for (Map.Entry<String, List<Action>> trigger: state.getActionsByTrigger().entrySet()) {
+      actionsBody.putInt(intern(strings, trigger.getKey()));
+      actionsBody.putInt(trigger.getValue().size());
+      for (Action action: trigger.getValue()) {
+        actionsBody.putInt(actionIndex.get(action));
+      }
+    }
+
+    body.putInt(strings.size());
+    for (String string: strings.keySet()) {
+      byte[] utf = string.getBytes(StandardCharsets.UTF_8);
+      body.putShort(utf.length);
+      body.put(utf);
+    }
+    body.put(entities);
+    body.put(placesBody);
+    body.put(actionsBody);
+
+    ByteBuffer bytes = body.buffer();
+    CRC32 crc = new CRC32();
+    crc.update(bytes.duplicate());
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + bytes.remaining());
+      map.putLong(MAGIC).putInt(VERSION);
+      map.putLong(checksum(entityFileName)).putLong(checksum(actionFileName));
+      map.putInt(bytes.remaining()).putInt((int) crc.getValue());
+      map.put(bytes);
+      map.force();
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * map an image and load it into an empty state
+   * @param file image file
+   * @param entityFileName entity file the image must match, the image is used as is if it can't be read
+   * @param actionFileName action file the image must match, the image is used as is if it can't be read
+   * @param world empty world to fill
+   * @param state state the actions are added to
+   * @return false if the image is missing, damaged or older than the text files, nothing is loaded then
+   */
+  public static boolean read(Path file, String entityFileName, String actionFileName, World world, StagState state) {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (map.remaining() < HEADER || map.getLong() != MAGIC || map.getInt() != VERSION) {
+        System.out.println("World image " + file + " is not usable, loading text files");
+        return false;
+      }
+      long entityChecksum = map.getLong();
+      long actionChecksum = map.getLong();
+      if (isStale(entityChecksum, entityFileName) || isStale(actionChecksum, actionFileName)) {
+        System.out.println("World image " + file + " is older than the text files, loading text files");
+        return false;
+      }
+      int length = map.getInt();
+      int bodyChecksum = map.getInt();
+      ByteBuffer body = map.slice();
+      CRC32 crc = new CRC32();
+      crc.update(body.duplicate());
+      if (length != body.remaining() || (int) crc.getValue() != bodyChecksum) {
+        System.out.println("World image " + file + " is damaged, loading text files");
+        return false;
+      }
+      load(body, world, state);
+      return true;
+    } catch (IOException e) {
+      System.out.println(e);
+      return false;
+    }
+  }
+
+  private static boolean isStale(long checksum, String fileName) {
+    long current = checksum(fileName);
+    return current != -1 && current != checksum;
+  }
+
+  private static void load(ByteBuffer body, World world, StagState state) {
+    String[] strings = new String[body.getInt()];
+    for (int i = 0; i < strings.length; i++) {
+      byte[] utf = new byte[body.getShort() & 0xffff];
+      body.get(utf);
+      strings[i] = new String(utf, StandardCharsets.UTF_8);
+    }
+
+    int entities = body.getInt();
+    for (int i = 0; i < entities; i++) {
+      world.describe(strings[body.getInt()], strings[body.getInt()]);
+    }
+
+    Location[] places = new Location[body.getInt()];
+    for (int i = 0; i < places.length; i++) {
+      places[i] = world.addLocation(strings[body.getInt()], strings[body.getInt()], new Graph());
+      int types = body.getInt();
+      for (int t = 0; t < types; t++) {
+        String type = strings[body.getInt()];
+        places[i].addType(type);
+        int count = body.getInt();
+        for (int e = 0; e < count; e++) {
+          places[i].add(type, strings[body.getInt()], body.getInt());
+        }
+      }
+    }
+    int[] offsets = new int[places.length + 1];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = body.getInt();
+    }
+    for (int i = 0; i < places.length; i++) {
+      for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+        places[i].addExit(places[body.getInt()]);
+      }
+    }
+
+    int actionCount = body.getInt();
+    String[] narrations = new String[actionCount];
+    List<Set<String>> subjects = new ArrayList<>();
+    List<Set<String>> consumed = new ArrayList<>();
+    List<Set<String>> produced = new ArrayList<>();
+    List<Set<String>> triggers = new ArrayList<>();
+    for (int i = 0; i < actionCount; i++) {
+      narrations[i] = strings[body.getInt()];
+      subjects.add(getIds(body, strings));
+      consumed.add(getIds(body, strings));
+      produced.add(getIds(body, strings));
+      triggers.add(new HashSet<>());
+    }
+    int triggerCount = body.getInt();
+    for (int i = 0; i < triggerCount; i++) {
+      String trigger = strings[body.getInt()];
+      int count = body.getInt();
+      for (int a = 0; a < count; a++) {
+        triggers.get(body.getInt()).add(trigger);
+      }
+    }
+    for (int i = 0; i < actionCount; i++) {   // in file order, so the trigger index keeps file order too
+      state.addAction(triggers.get(i), new Action(triggers.get(i), subjects.get(i), consumed.get(i), produced.get(i), narrations[i]));
+    }
+  }
+
+  private static int intern(Map<String, Integer> strings, String value) {
+    return strings.computeIfAbsent(value, key -> strings.size());
+  }
+
+  private static void putIds(Body body, Map<String, Integer> strings, Set<String> values) {
+    body.putInt(values.size());
+    for (String value: values) {
+      body.putInt(intern(strings, value));
+    }
+  }
+
+  private static Set<String> getIds(ByteBuffer body, String[] strings) {
+    int count = body.getInt();
+    Set<String> values = new HashSet<>();
+    for (int i = 0; i < count; i++) {
+      values.add(strings[body.getInt()]);
+    }
+    return values;
+  }
+
+  /**
+   * growable big-endian byte buffer for one image section
+   */
+  private static class Body {
+
+    private ByteBuffer bytes = ByteBuffer.allocate(4096);
+
+    private void ensure(int more) {
+      if (bytes.remaining() < more) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, bytes.position() + more));
+        bytes.flip();
+        grown.put(bytes);
+        bytes = grown;
+      }
+    }
+
+    void putInt(int value) {
+      ensure(4);
+      bytes.putInt(value);
+    }
+
+    void putShort(int value) {
+      ensure(2);
+      bytes.putShort((short) value);
+    }
+
+    void put(byte[] value) {
+      ensure(value.length);
+      bytes.put(value);
+    }
+
+    void put(Body other) {
+      ByteBuffer section = other.buffer();
+      ensure(section.remaining());
+      bytes.put(section);
+    }
+
+    ByteBuffer buffer() {
+      ByteBuffer view = bytes.duplicate();
+      view.flip();
+      return view;
+    }
+
+  }
+
+}
@@ -0,0 +1,110 @@
+package stag.bench;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * handles on the game classes, which live in the default package and are loaded from
+ * -Dstag.home (the compiled game directory with dot-parser.jar and json-parser.jar)
+ */
+final class Game {
+
+  private static final ClassLoader LOADER = loader();
+  private static final Class<?> STATE = load("StagState");
+  private static final Class<?> PLAYER = load("Player");
+
+  // handles are static final so the JIT treats them as constants
+  static final MethodHandle NEW_STATE = constructor(STATE, MethodType.methodType(void.class, String.class, String.class))
+      .asType(MethodType.methodType(Object.class, String.class, String.class));
+  static final MethodHandle FIND_PLAYER = method("findPlayer", MethodType.methodType(PLAYER, String.class))
+      .asType(MethodType.methodType(Object.class, Object.class, String.class));
+  static final MethodHandle LOOK = method("look", MethodType.methodType(String.class, PLAYER))
+      .asType(MethodType.methodType(String.class, Object.class, Object.class));
+  static final MethodHandle GOTO = method("gotoPosition", MethodType.methodType(String.class, PLAYER, String.class))
+      .asType(MethodType.methodType(String.class, Object.class, Object.class, String.class));
+  static final MethodHandle PICK_UP = method("pickUp", MethodType.methodType(String.class, PLAYER, String.class))
+      .asType(MethodType.methodType(String.class, Object.class, Object.class, String.class));
+  static final MethodHandle DROP = method("drop", MethodType.methodType(String.class, PLAYER, String.class))
+      .asType(MethodType.methodType(String.class, Object.class, Object.class, String.class));
+  static final MethodHandle PROCESS_ACTION = method("processAction", MethodType.methodType(String.class, PLAYER, String[].class))
+      .asType(MethodType.methodType(String.class, Object.class, Object.class, String[].class));
+
+  private Game() {
+  }
+
+  private static ClassLoader loader() {
+    Path home = Paths.get(System.getProperty("stag.home", ".."));
+    List<URL> urls = new ArrayList<>();
+    try {
+      urls.add(home.toUri().toURL());
+      for (String jar: new String[] { "dot-parser.jar", "json-parser.jar" }) {
+        if (Files.exists(home.resolve(jar))) {
+          urls.add(home.resolve(jar).toUri().toURL());
+        }
+      }
+    } catch (MalformedURLException e) {
+      throw new IllegalStateException(e);
+    }
+    return new URLClassLoader(urls.toArray(new URL[0]), Game.class.getClassLoader());
+  }
+
+  private static Class<?> load(String name) {
+    try {
+      return Class.forName(name, true, LOADER);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("Game classes not found, set -Dstag.home to the compiled game directory", e);
+    }
+  }
+
+  private static MethodHandle constructor(Class<?> type, MethodType signature) {
+    try {
+      return MethodHandles.publicLookup().findConstructor(type, signature);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MethodHandle method(String name, MethodType signature) {
+    try {
+      return MethodHandles.publicLookup().findVirtual(STATE, name, signature);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * build a game state the way the server does
+   * @param world synthetic world files
+   * @return StagState
+   */
+  static Object newState(SyntheticWorld world) {
+    try {
+      return (Object) NEW_STATE.invokeExact(world.entities.toString(), world.actions.toString());
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * write a synthetic world and load it, files are removed again
+   */
+  static Object newState(int locations, int entitiesPerRoom, int edgesPerRoom, int actions) throws IOException {
+    SyntheticWorld world = new SyntheticWorld(locations, entitiesPerRoom, edgesPerRoom, actions);
+    try {
+      return newState(world);
+    } finally {
+      world.delete();
+    }
+  }
+
+}
@@ -0,0 +1,26 @@
+package stag.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * runs the benchmarks with JSON results, usual JMH command line options
+ * (a benchmark name pattern, -p locations=1000, ...) still apply
+ */
+public class StagBenchmarks {
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    Options options = new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .resultFormat(ResultFormatType.JSON)
+        .result(System.getProperty("stag.bench.results", "bench-results.json"))
+        .build();
+    new Runner(options).run();
+  }
+
+}
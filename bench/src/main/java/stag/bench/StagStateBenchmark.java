@@ -0,0 +1,93 @@
+package stag.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * per-command cost of the StagState methods behind each command, over worlds of growing size
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StagStateBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class WorldState {
+
+    @Param({ "10", "1000", "10000" })
+    int locations;
+
+    @Param({ "4", "64" })
+    int entitiesPerRoom;
+
+    @Param({ "2", "8" })
+    int edgesPerRoom;
+
+    @Param({ "10", "1000" })
+    int actions;
+
+    Object state;   // StagState
+    final AtomicInteger players = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+      state = Game.newState(locations, entitiesPerRoom, edgesPerRoom, actions);
+    }
+
+  }
+
+  /**
+   * one player per benchmark thread, standing in the start room loc0
+   */
+  @State(Scope.Thread)
+  public static class PlayerState {
+
+    String name;
+    Object player;   // Player
+    final String[] examine = { "examine", "statue" };
+
+    @Setup(Level.Trial)
+    public void join(WorldState world) throws Throwable {
+      name = "bench" + world.players.incrementAndGet();
+      player = (Object) Game.FIND_PLAYER.invokeExact(world.state, name);
+    }
+
+  }
+
+  @Benchmark
+  public Object findPlayer(WorldState world, PlayerState player) throws Throwable {
+    return (Object) Game.FIND_PLAYER.invokeExact(world.state, player.name);
+  }
+
+  @Benchmark
+  public String look(WorldState world, PlayerState player) throws Throwable {
+    return (String) Game.LOOK.invokeExact(world.state, player.player);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(2)
+  public String gotoPosition(WorldState world, PlayerState player) throws Throwable {
+    String there = (String) Game.GOTO.invokeExact(world.state, player.player, "loc1");
+    String back = (String) Game.GOTO.invokeExact(world.state, player.player, "loc0");
+    return there.length() > back.length() ? there : back;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(2)
+  public String pickUpDrop(WorldState world, PlayerState player) throws Throwable {
+    String picked = (String) Game.PICK_UP.invokeExact(world.state, player.player, "coin");
+    String dropped = (String) Game.DROP.invokeExact(world.state, player.player, "coin");
+    return picked.length() > dropped.length() ? picked : dropped;
+  }
+
+  @Benchmark
+  public String processAction(WorldState world, PlayerState player) throws Throwable {
+    return (String) Game.PROCESS_ACTION.invokeExact(world.state, player.player, player.examine);
+  }
+
+}
@@ -0,0 +1,45 @@
+package stag.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * time for StagState's constructor to parse the entity and action files of a world
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+  @Param({ "10", "1000", "10000", "100000" })
+  int locations;
+
+  @Param({ "4", "64" })
+  int entitiesPerRoom;
+
+  @Param({ "1000" })
+  int actions;
+
+  SyntheticWorld world;
+
+  @Setup(Level.Trial)
+  public void write() throws IOException {
+    world = new SyntheticWorld(locations, entitiesPerRoom, 4, actions);
+  }
+
+  @TearDown(Level.Trial)
+  public void delete() throws IOException {
+    world.delete();
+  }
+
+  @Benchmark
+  public Object parse() {
+    return Game.newState(world);
+  }
+
+}
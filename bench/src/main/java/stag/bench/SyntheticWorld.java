@@ -0,0 +1,84 @@
+package stag.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * entity and action files of a generated world.
+ *
+ * rooms loc0..locN-1 form a two-way ring with extra one-way edges, every room has a "statue",
+ * a "coin" and entitiesPerRoom gems and fixtures. Action 0 is "examine statue", the rest are
+ * spread over a few trigger words so lookups see several candidates.
+ */
+final class SyntheticWorld {
+
+  final Path directory;
+  final Path entities;
+  final Path actions;
+
+  SyntheticWorld(int locations, int entitiesPerRoom, int edgesPerRoom, int actionCount) throws IOException {
+    directory = Files.createTempDirectory("stag-bench");
+    entities = directory.resolve("entities.dot");
+    actions = directory.resolve("actions.json");
+    writeEntities(locations, entitiesPerRoom, edgesPerRoom);
+    writeActions(locations, actionCount);
+  }
+
+  private void writeEntities(int locations, int entitiesPerRoom, int edgesPerRoom) throws IOException {
+    try (BufferedWriter out = Files.newBufferedWriter(entities)) {
+      out.write("digraph layout {\n  subgraph locations {\n");
+      for (int room = 0; room < locations; room++) {
+        out.write("    subgraph cluster" + room + " {\n");
+        out.write("      node [shape = \"none\"];\n");
+        out.write("      loc" + room + " [description = \"Room " + room + "\"];\n");
+        out.write("      subgraph artefacts {\n");
+        out.write("        coin [description = \"A coin\"];\n");
+        for (int i = 0; i < entitiesPerRoom / 2; i++) {
+          out.write("        gem" + room + "_" + i + " [description = \"Gem " + i + "\"];\n");
+        }
+        out.write("      }\n      subgraph furniture {\n");
+        out.write("        statue [description = \"A statue\"];\n");
+        for (int i = 0; i < entitiesPerRoom - entitiesPerRoom / 2; i++) {
+          out.write("        fixture" + room + "_" + i + " [description = \"Fixture " + i + "\"];\n");
+        }
+        out.write("      }\n    }\n");
+      }
+      out.write("    subgraph cluster_unplaced {\n      node [shape = \"none\"];\n");
+      out.write("      unplaced [description = \"Unplaced entities\"];\n");
+      out.write("      subgraph artefacts {\n        spare [description = \"A spare part\"];\n      }\n    }\n");
+      out.write("  }\n  subgraph paths {\n");
+      for (int room = 0; room < locations; room++) {
+        int next = (room + 1) % locations;
+        out.write("    loc" + room + " -> loc" + next + ";\n");
+        out.write("    loc" + next + " -> loc" + room + ";\n");
+        for (int edge = 2; edge < edgesPerRoom; edge++) {
+          out.write("    loc" + room + " -> loc" + (int) ((room * 31L + edge * 7919L) % locations) + ";\n");
+        }
+      }
+      out.write("  }\n}\n");
+    }
+  }
+
+  private void writeActions(int locations, int actionCount) throws IOException {
+    try (BufferedWriter out = Files.newBufferedWriter(actions)) {
+      out.write("{ \"actions\": [\n");
+      for (int i = 0; i < actionCount; i++) {
+        String trigger = i == 0 ? "examine" : "act" + (i % 16);
+        String subjects = i == 0 ? "\"statue\"" : "\"statue\", \"gem" + (i % locations) + "_0\"";
+        out.write(i == 0 ? " " : ",");
+        out.write("{ \"triggers\": [\"" + trigger + "\"], \"subjects\": [" + subjects + "], \"consumed\": [], "
+            + "\"produced\": [], \"narration\": \"You do thing " + i + "\" }\n");
+      }
+      out.write("] }\n");
+    }
+  }
+
+  void delete() throws IOException {
+    Files.deleteIfExists(entities);
+    Files.deleteIfExists(actions);
+    Files.deleteIfExists(directory);
+  }
+
+}